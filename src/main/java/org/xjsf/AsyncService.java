@@ -0,0 +1,42 @@
+package org.xjsf;
+
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A service that builds its responses asynchronously, so that container
+ * threads are not held while it waits on I/O. Readiness, usage limits, help,
+ * caching and error messages are handled exactly as they are for other
+ * services.
+ * <p>
+ * The servlet must be declared with <em>async-supported</em> for the
+ * container thread to be released; otherwise the container thread waits for
+ * each response to complete.
+ */
+@SuppressWarnings("serial")
+public abstract class AsyncService extends Service {
+
+    public AsyncService(String groupName, String shortDescription, String detailsMarkup, boolean supportsDirectResponse) {
+        super(groupName, shortDescription, detailsMarkup, supportsDirectResponse);
+    }
+
+    /**
+     * Starts building the response to the given request
+     *
+     * @param request the request made to the service
+     * @return a future that completes with the response, or completes
+     * exceptionally if the response could not be built
+     * @throws Exception if the response could not be started
+     */
+    public abstract CompletableFuture<Message> buildWrappedResponseAsync(HttpServletRequest request) throws Exception;
+
+    @Override
+    CompletableFuture<Message> buildAsyncResponse(HttpServletRequest request) throws Exception {
+        return buildWrappedResponseAsync(request);
+    }
+
+    @Override
+    public Message buildWrappedResponse(HttpServletRequest request) throws Exception {
+        return buildWrappedResponseAsync(request).get();
+    }
+}
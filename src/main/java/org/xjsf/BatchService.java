@@ -0,0 +1,356 @@
+package org.xjsf;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.annotations.Expose;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.Element;
+import org.simpleframework.xml.ElementList;
+import org.xjsf.UtilityMessages.ErrorMessage;
+import org.xjsf.param.StringParameter;
+
+/**
+ * Makes several calls to other services in a single request. The calls are
+ * dispatched in-process to the registered services, a few at a time, and their
+ * responses (or errors) are returned together in the order the calls were
+ * given. Each call is subject to the readiness and usage limits of the service
+ * it is made to, exactly as if it had been made over HTTP.
+ * <p>
+ * The number of calls per batch and the number of calls made at once can be
+ * set with the <em>maxCalls</em> and <em>maxParallelCalls</em> servlet
+ * parameters.
+ */
+@SuppressWarnings("serial")
+public class BatchService extends AsyncService {
+
+    private StringParameter prmCalls;
+    private int maxCalls;
+    private int maxParallelCalls;
+
+    public BatchService() {
+        super("meta", "Makes several calls to other services at once",
+                "<p>This service makes several calls to other services in a single request, and returns all of their responses together.</p>"
+                + "<p>Calls are specified as a JSON array of objects, each with the name of a <em>service</em> and the <em>params</em> to call it with, "
+                + "e.g. <code>[{\"service\":\"listServices\"},{\"service\":\"usage\",\"params\":{\"responseFormat\":\"JSON\"}}]</code></p>", false);
+    }
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+
+        String maxCallsParam = config.getInitParameter("maxCalls");
+        maxCalls = maxCallsParam != null ? Integer.parseInt(maxCallsParam) : 50;
+
+        String maxParallelCallsParam = config.getInitParameter("maxParallelCalls");
+        maxParallelCalls = maxParallelCallsParam != null ? Integer.parseInt(maxParallelCallsParam) : 8;
+
+        prmCalls = new StringParameter("calls", "a JSON array of the calls to make, each with the name of a <em>service</em> and (optionally) an object of <em>params</em>", null);
+        addGlobalParameter(prmCalls);
+    }
+
+    /**
+     * Calls are accounted for individually, by the services they are made to
+     */
+    @Override
+    public int getUsageCost(HttpServletRequest request) {
+        return 0;
+    }
+
+    @Override
+    public CompletableFuture<Service.Message> buildWrappedResponseAsync(final HttpServletRequest request) throws Exception {
+
+        final List<Call> calls = parseCalls(request);
+        final Service.Message[] responses = new Service.Message[calls.size()];
+
+        AtomicInteger nextCall = new AtomicInteger();
+        Executor executor = getHub().getBlockingExecutor();
+
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.min(maxParallelCalls, calls.size())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = makeCalls(calls, responses, nextCall, executor);
+        }
+
+        return CompletableFuture.allOf(workers).thenApply((Void v) -> {
+            ArrayList<Result> results = new ArrayList<>();
+            for (int i = 0; i < responses.length; i++) {
+                results.add(new Result(calls.get(i).serviceName, responses[i]));
+            }
+            return new Message(request, results);
+        });
+    }
+
+    /**
+     * Makes calls one after another until there are none left
+     */
+    private CompletableFuture<Void> makeCalls(final List<Call> calls, final Service.Message[] responses, final AtomicInteger nextCall, final Executor executor) {
+
+        final int index = nextCall.getAndIncrement();
+
+        if (index >= calls.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.supplyAsync(() -> calls.get(index).make(), executor)
+                .thenCompose((CompletableFuture<Service.Message> response) -> response)
+                .thenCompose((Service.Message response) -> {
+                    responses[index] = response;
+                    return makeCalls(calls, responses, nextCall, executor);
+                });
+    }
+
+    private List<Call> parseCalls(HttpServletRequest request) {
+
+        String callsParam = prmCalls.getMemoizedValue(request);
+
+        if (callsParam == null) {
+            throw new IllegalArgumentException("No calls were specified");
+        }
+
+        JsonElement parsed;
+        try {
+            parsed = new JsonParser().parse(callsParam);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Calls must be specified as a JSON array: " + e.getMessage());
+        }
+
+        if (!parsed.isJsonArray()) {
+            throw new IllegalArgumentException("Calls must be specified as a JSON array");
+        }
+
+        JsonArray callArray = parsed.getAsJsonArray();
+
+        if (callArray.size() > maxCalls) {
+            throw new IllegalArgumentException("No more than " + maxCalls + " calls can be made at once");
+        }
+
+        String keyParam = getHub().getKeyParam();
+
+        ArrayList<Call> calls = new ArrayList<>();
+        for (JsonElement callElement : callArray) {
+
+            if (!callElement.isJsonObject() || !callElement.getAsJsonObject().has("service")) {
+                throw new IllegalArgumentException("Each call must be an object with the name of a service");
+            }
+
+            JsonObject callObject = callElement.getAsJsonObject();
+            String serviceName = callObject.get("service").getAsString();
+            if (serviceName.startsWith("/")) {
+                serviceName = serviceName.substring(1);
+            }
+
+            LinkedHashMap<String, String[]> params = new LinkedHashMap<>();
+            JsonElement paramsElement = callObject.get("params");
+            if (paramsElement != null && paramsElement.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> e : paramsElement.getAsJsonObject().entrySet()) {
+                    params.put(e.getKey(), getParamValues(e.getValue()));
+                }
+            }
+
+            calls.add(new Call(serviceName, new CallRequest(request, "/" + serviceName, params, keyParam)));
+        }
+
+        return calls;
+    }
+
+    private static String[] getParamValues(JsonElement value) {
+
+        if (value.isJsonArray()) {
+            JsonArray array = value.getAsJsonArray();
+            String[] values = new String[array.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = array.get(i).getAsString();
+            }
+            return values;
+        }
+
+        return new String[]{value.getAsString()};
+    }
+
+    private class Call {
+
+        private final String serviceName;
+        private final CallRequest request;
+
+        private Call(String serviceName, CallRequest request) {
+            this.serviceName = serviceName;
+            this.request = request;
+        }
+
+        private CompletableFuture<Service.Message> make() {
+
+            Service service = getHub().getService(serviceName);
+
+            if (service == null) {
+                return CompletableFuture.completedFuture((Service.Message) new ErrorMessage(request, "There is no service called " + serviceName));
+            }
+            if (service instanceof BatchService) {
+                return CompletableFuture.completedFuture((Service.Message) new ErrorMessage(request, "Batches cannot be nested"));
+            }
+
+            return service.invoke(request);
+        }
+    }
+
+    /**
+     * A request to another service, made on behalf of the client that made the
+     * batch request. Everything but the service path, parameters and
+     * attributes is taken from the batch request. An api key given as a
+     * parameter of the batch request is passed on to every call, so that calls
+     * are made as the same client.
+     */
+    private static class CallRequest extends HttpServletRequestWrapper {
+
+        private final String servletPath;
+        private final Map<String, String[]> params;
+        private final String keyParam;
+        private final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<String, Object>());
+
+        private CallRequest(HttpServletRequest request, String servletPath, Map<String, String[]> params, String keyParam) {
+            super(request);
+            this.servletPath = servletPath;
+            this.params = Collections.unmodifiableMap(params);
+            this.keyParam = keyParam;
+        }
+
+        @Override
+        public String getServletPath() {
+            return servletPath;
+        }
+
+        @Override
+        public String getPathInfo() {
+            return null;
+        }
+
+        @Override
+        public String getParameter(String name) {
+            if (isKeyFromBatch(name)) {
+                return super.getParameter(name);
+            }
+            String[] values = params.get(name);
+            return values != null && values.length > 0 ? values[0] : null;
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            if (isKeyFromBatch(name)) {
+                return super.getParameterValues(name);
+            }
+            String[] values = params.get(name);
+            return values != null ? values.clone() : null;
+        }
+
+        private boolean isKeyFromBatch(String name) {
+            return name.equals(keyParam) && !params.containsKey(name);
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(params.keySet());
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return params;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            synchronized (attributes) {
+                return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+            }
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return false;
+        }
+
+        @Override
+        public AsyncContext startAsync() {
+            throw new IllegalStateException("Calls made within a batch cannot be asynchronous");
+        }
+
+        @Override
+        public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+            throw new IllegalStateException("Calls made within a batch cannot be asynchronous");
+        }
+    }
+
+    public static class Message extends Service.Message {
+
+        @Expose
+        @ElementList(entry = "result")
+        private final ArrayList<Result> results;
+
+        private Message(HttpServletRequest request, ArrayList<Result> results) {
+            super(request);
+            this.results = results;
+        }
+
+        public List<Result> getResults() {
+            return Collections.unmodifiableList(results);
+        }
+    }
+
+    public static class Result {
+
+        @Expose
+        @Attribute
+        private final String service;
+        @Expose
+        @Element
+        private final Service.Message response;
+
+        private Result(String service, Service.Message response) {
+            this.service = service;
+            this.response = response;
+        }
+
+        public String getServiceName() {
+            return service;
+        }
+
+        public Service.Message getResponse() {
+            return response;
+        }
+
+        public boolean isError() {
+            return response instanceof ErrorMessage;
+        }
+    }
+}
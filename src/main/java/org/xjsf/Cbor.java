@@ -0,0 +1,383 @@
+package org.xjsf;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Encodes and decodes CBOR (RFC 7049), the binary counterpart of the JSON
+ * responses. Messages are converted to and from the same JSON trees Gson
+ * builds, so fields are exposed and named exactly as they are in JSON.
+ * <p>
+ * Integers are encoded in the fewest bytes possible, and other numbers as
+ * double precision floats. Byte strings are decoded as ISO-8859-1 strings, and
+ * tags are ignored.
+ */
+public final class Cbor {
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int SIMPLE = 7;
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+
+    private Cbor() {
+    }
+
+    /**
+     * Encodes the given JSON tree
+     *
+     * @param element the tree to encode
+     * @param out the stream to write the encoding to
+     * @throws IOException if the encoding could not be written
+     */
+    public static void write(JsonElement element, OutputStream out) throws IOException {
+
+        if (element == null || element.isJsonNull()) {
+            out.write(0xf6);
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            writeHead(MAP, object.entrySet().size(), out);
+            writeEntries(object, out);
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeHead(ARRAY, array.size(), out);
+            for (JsonElement item : array) {
+                write(item, out);
+            }
+        } else {
+            writePrimitive(element.getAsJsonPrimitive(), out);
+        }
+    }
+
+    /**
+     * Encodes the entries of the given object, without the head that says how
+     * many there are. This allows an object to be extended with entries that
+     * are not known in advance, by starting it with {@link #writeMapStart}.
+     *
+     * @param object the object whose entries should be written
+     * @param out the stream to write the encoding to
+     * @throws IOException if the encoding could not be written
+     */
+    public static void writeEntries(JsonObject object, OutputStream out) throws IOException {
+        for (Map.Entry<String, JsonElement> e : object.entrySet()) {
+            writeString(e.getKey(), out);
+            write(e.getValue(), out);
+        }
+    }
+
+    /**
+     * Starts a map whose size is not known in advance. It must be ended with
+     * {@link #writeBreak}.
+     */
+    public static void writeMapStart(OutputStream out) throws IOException {
+        out.write((MAP << 5) | INDEFINITE);
+    }
+
+    /**
+     * Starts an array whose size is not known in advance. It must be ended
+     * with {@link #writeBreak}.
+     */
+    public static void writeArrayStart(OutputStream out) throws IOException {
+        out.write((ARRAY << 5) | INDEFINITE);
+    }
+
+    /**
+     * Ends a map or array started with {@link #writeMapStart} or
+     * {@link #writeArrayStart}
+     */
+    public static void writeBreak(OutputStream out) throws IOException {
+        out.write(BREAK);
+    }
+
+    public static void writeString(String value, OutputStream out) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeHead(TEXT, bytes.length, out);
+        out.write(bytes);
+    }
+
+    private static void writePrimitive(JsonPrimitive primitive, OutputStream out) throws IOException {
+
+        if (primitive.isBoolean()) {
+            out.write(primitive.getAsBoolean() ? 0xf5 : 0xf4);
+        } else if (primitive.isNumber()) {
+            writeNumber(primitive.getAsNumber(), out);
+        } else {
+            writeString(primitive.getAsString(), out);
+        }
+    }
+
+    private static void writeNumber(Number number, OutputStream out) throws IOException {
+
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+            writeInteger(number.longValue(), out);
+            return;
+        }
+
+        if (!(number instanceof Double || number instanceof Float)) {
+            //big or lazily parsed numbers are written as integers if they are integers that fit
+            try {
+                BigInteger integer = new BigDecimal(number.toString()).toBigIntegerExact();
+                if (integer.bitLength() < 64) {
+                    writeInteger(integer.longValue(), out);
+                    return;
+                }
+            } catch (ArithmeticException | NumberFormatException e) {
+                //not an integer
+            }
+        }
+
+        out.write((SIMPLE << 5) | 27);
+        writeLong(Double.doubleToLongBits(number.doubleValue()), out);
+    }
+
+    private static void writeInteger(long value, OutputStream out) throws IOException {
+        if (value >= 0) {
+            writeHead(UNSIGNED, value, out);
+        } else {
+            writeHead(NEGATIVE, -1 - value, out);
+        }
+    }
+
+    private static void writeHead(int majorType, long length, OutputStream out) throws IOException {
+
+        int type = majorType << 5;
+
+        if (length < 24) {
+            out.write(type | (int) length);
+        } else if (length <= 0xff) {
+            out.write(type | 24);
+            out.write((int) length);
+        } else if (length <= 0xffff) {
+            out.write(type | 25);
+            out.write((int) (length >> 8));
+            out.write((int) length);
+        } else if (length <= 0xffffffffL) {
+            out.write(type | 26);
+            out.write((int) (length >> 24));
+            out.write((int) (length >> 16));
+            out.write((int) (length >> 8));
+            out.write((int) length);
+        } else {
+            out.write(type | 27);
+            writeLong(length, out);
+        }
+    }
+
+    private static void writeLong(long value, OutputStream out) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >> shift));
+        }
+    }
+
+    /**
+     * Decodes a single CBOR data item into a JSON tree
+     *
+     * @param in the stream to read the encoding from
+     * @return the decoded tree
+     * @throws IOException if the encoding could not be read, or is not valid
+     * CBOR
+     */
+    public static JsonElement read(InputStream in) throws IOException {
+
+        int initial = readByte(in);
+        if (initial == BREAK) {
+            throw new IOException("Unexpected break in CBOR data");
+        }
+
+        return read(initial, in);
+    }
+
+    private static JsonElement read(int initial, InputStream in) throws IOException {
+
+        int majorType = initial >> 5;
+        int info = initial & 0x1f;
+
+        switch (majorType) {
+            case UNSIGNED: {
+                long value = readLength(info, in);
+                if (value < 0) {
+                    return new JsonPrimitive(new BigInteger(Long.toUnsignedString(value)));
+                }
+                return new JsonPrimitive(value);
+            }
+            case NEGATIVE: {
+                long value = readLength(info, in);
+                if (value < 0) {
+                    return new JsonPrimitive(new BigInteger(Long.toUnsignedString(value)).add(BigInteger.ONE).negate());
+                }
+                return new JsonPrimitive(-1 - value);
+            }
+            case BYTES:
+                return new JsonPrimitive(new String(readBytes(BYTES, info, in), StandardCharsets.ISO_8859_1));
+            case TEXT:
+                return new JsonPrimitive(new String(readBytes(TEXT, info, in), StandardCharsets.UTF_8));
+            case ARRAY: {
+                JsonArray array = new JsonArray();
+                if (info == INDEFINITE) {
+                    int next;
+                    while ((next = readByte(in)) != BREAK) {
+                        array.add(read(next, in));
+                    }
+                } else {
+                    for (long i = readLength(info, in); i > 0; i--) {
+                        array.add(read(in));
+                    }
+                }
+                return array;
+            }
+            case MAP: {
+                JsonObject object = new JsonObject();
+                if (info == INDEFINITE) {
+                    int next;
+                    while ((next = readByte(in)) != BREAK) {
+                        object.add(getKey(read(next, in)), read(in));
+                    }
+                } else {
+                    for (long i = readLength(info, in); i > 0; i--) {
+                        object.add(getKey(read(in)), read(in));
+                    }
+                }
+                return object;
+            }
+            case TAG:
+                readLength(info, in);
+                return read(in);
+            default:
+                return readSimple(info, in);
+        }
+    }
+
+    private static String getKey(JsonElement key) throws IOException {
+
+        if (!key.isJsonPrimitive() || !key.getAsJsonPrimitive().isString()) {
+            throw new IOException("CBOR map keys must be text strings");
+        }
+
+        return key.getAsString();
+    }
+
+    private static JsonElement readSimple(int info, InputStream in) throws IOException {
+
+        switch (info) {
+            case 20:
+                return new JsonPrimitive(false);
+            case 21:
+                return new JsonPrimitive(true);
+            case 22:
+            case 23:
+                return JsonNull.INSTANCE;
+            case 25:
+                return new JsonPrimitive(toDouble((readByte(in) << 8) | readByte(in)));
+            case 26:
+                return new JsonPrimitive((double) Float.intBitsToFloat((int) readLength(26, in)));
+            case 27:
+                return new JsonPrimitive(Double.longBitsToDouble(readLength(27, in)));
+            default:
+                throw new IOException("Unsupported CBOR simple value " + info);
+        }
+    }
+
+    private static double toDouble(int half) {
+
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    private static byte[] readBytes(int majorType, int info, InputStream in) throws IOException {
+
+        if (info == INDEFINITE) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int next;
+            while ((next = readByte(in)) != BREAK) {
+                if (next >> 5 != majorType) {
+                    throw new IOException("Invalid chunk in CBOR string");
+                }
+                bytes.write(readBytes(majorType, next & 0x1f, in));
+            }
+            return bytes.toByteArray();
+        }
+
+        long length = readLength(info, in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("CBOR string is too long");
+        }
+
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of CBOR data");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    private static long readLength(int info, InputStream in) throws IOException {
+
+        if (info < 24) {
+            return info;
+        }
+
+        int byteCount;
+        switch (info) {
+            case 24:
+                byteCount = 1;
+                break;
+            case 25:
+                byteCount = 2;
+                break;
+            case 26:
+                byteCount = 4;
+                break;
+            case 27:
+                byteCount = 8;
+                break;
+            default:
+                throw new IOException("Invalid CBOR length " + info);
+        }
+
+        long length = 0;
+        for (int i = 0; i < byteCount; i++) {
+            length = (length << 8) | readByte(in);
+        }
+        return length;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of CBOR data");
+        }
+        return b;
+    }
+}
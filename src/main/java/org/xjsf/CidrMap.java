@@ -0,0 +1,448 @@
+package org.xjsf;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Maps ranges of IPv4 and IPv6 addresses, given in CIDR notation (e.g.
+ * 192.168.0.0/16 or 2001:db8::/32), to values. Lookups return the value of the
+ * longest range that contains an address.
+ * <p>
+ * Any two CIDR ranges are either disjoint or one contains the other, so once
+ * ranges have been added they are flattened into a sorted list of disjoint
+ * intervals, each with the value of the longest range that covers it. Looking
+ * up an address is then a binary search, and each range costs a few dozen
+ * bytes however long its prefix is. Addresses are parsed without ever
+ * resolving names.
+ * <p>
+ * Maps are not synchronized: ranges must all be added before the map is
+ * shared between threads.
+ *
+ * @param <V> the type of value ranges map to
+ */
+public class CidrMap<V> {
+
+    private final ArrayList<Prefix> prefixes = new ArrayList<>();
+    private volatile Intervals ipv4;
+    private volatile Intervals ipv6;
+
+    /**
+     * Maps the given range of addresses to the given value, unless a longer
+     * range already maps the same addresses. A range that was already added
+     * is mapped to the new value.
+     *
+     * @param cidr an address (for a range of just that address) or a range in
+     * CIDR notation
+     * @param value the value to map the range to
+     * @throws IllegalArgumentException if the range cannot be parsed
+     */
+    public void put(String cidr, V value) throws IllegalArgumentException {
+
+        int slash = cidr.indexOf('/');
+
+        byte[] address = parseAddress(slash < 0 ? cidr : cidr.substring(0, slash));
+        int length = address != null ? parseLength(cidr, slash, address) : -1;
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid address range: '" + cidr + "'");
+        }
+
+        prefixes.add(new Prefix(address, length, value, prefixes.size()));
+
+        //flattened again when next looked up
+        ipv4 = null;
+        ipv6 = null;
+    }
+
+    /**
+     * Checks a range without adding it
+     *
+     * @param cidr an address or a range in CIDR notation
+     * @return true if the range can be added to a map
+     */
+    public static boolean isValidRange(String cidr) {
+
+        int slash = cidr.indexOf('/');
+
+        byte[] address = parseAddress(slash < 0 ? cidr : cidr.substring(0, slash));
+        return address != null && parseLength(cidr, slash, address) >= 0;
+    }
+
+    /**
+     * @return the prefix length of the given range (the whole address, if
+     * there is no slash), or -1 if it is not valid for the address
+     */
+    private static int parseLength(String cidr, int slash, byte[] address) {
+
+        if (slash < 0) {
+            return address.length * 8;
+        }
+
+        int length;
+        try {
+            length = Integer.parseInt(cidr.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        return length >= 0 && length <= address.length * 8 ? length : -1;
+    }
+
+    /**
+     * Returns the value of the longest range containing the given address
+     *
+     * @param address an IPv4 or IPv6 address
+     * @return the value of the longest range containing the address, or null
+     * if it is not in any range or is not an address
+     */
+    public V get(String address) {
+        byte[] bytes = parseAddress(address);
+        return bytes != null ? get(bytes) : null;
+    }
+
+    /**
+     * Returns the value of the longest range containing the given address
+     *
+     * @param address the 4 bytes of an IPv4 address, or the 16 bytes of an
+     * IPv6 address
+     * @return the value of the longest range containing the address, or null
+     * if it is not in any range
+     */
+    @SuppressWarnings("unchecked")
+    public V get(byte[] address) {
+
+        Intervals intervals = address.length == 4 ? ipv4 : ipv6;
+        if (intervals == null) {
+            intervals = flatten(address.length);
+        }
+
+        int i = intervals.find(address);
+        return i >= 0 ? (V) intervals.values[i] : null;
+    }
+
+    /**
+     * @return true if no ranges have been added
+     */
+    public boolean isEmpty() {
+        return prefixes.isEmpty();
+    }
+
+    /**
+     * Flattens the ranges of one address family into disjoint intervals
+     *
+     * @param addressLength 4 for IPv4 ranges, or 16 for IPv6 ones
+     * @return the intervals, in order
+     */
+    synchronized Intervals flatten(int addressLength) {
+
+        Intervals intervals = addressLength == 4 ? ipv4 : ipv6;
+        if (intervals != null) {
+            return intervals;
+        }
+
+        ArrayList<Prefix> family = new ArrayList<>();
+        for (Prefix p : prefixes) {
+            if (p.start.length == addressLength) {
+                family.add(p);
+            }
+        }
+
+        //ranges come before the ranges they contain, and repeats of a range after the ranges they replace
+        Collections.sort(family, (Prefix a, Prefix b) -> {
+            int c = compare(a.start, b.start);
+            if (c == 0) {
+                c = Integer.compare(a.length, b.length);
+            }
+            return c != 0 ? c : Integer.compare(a.order, b.order);
+        });
+
+        Intervals.Builder builder = new Intervals.Builder(addressLength);
+        ArrayList<Prefix> open = new ArrayList<>();
+        //the first address not yet covered by an interval, or null once every address is
+        byte[] cursor = new byte[addressLength];
+
+        for (int i = 0; i < family.size(); i++) {
+
+            Prefix p = family.get(i);
+            if (i + 1 < family.size() && family.get(i + 1).isSameRange(p)) {
+                continue;
+            }
+
+            //close the ranges that end before this one starts
+            while (!open.isEmpty() && compare(open.get(open.size() - 1).end, p.start) < 0) {
+                cursor = builder.add(cursor, open.remove(open.size() - 1));
+            }
+
+            //the range this one is nested in covers everything up to it
+            if (!open.isEmpty() && cursor != null && compare(cursor, p.start) < 0) {
+                builder.add(cursor, decrement(p.start), open.get(open.size() - 1).value);
+            }
+
+            cursor = p.start;
+            open.add(p);
+        }
+
+        while (!open.isEmpty()) {
+            cursor = builder.add(cursor, open.remove(open.size() - 1));
+        }
+
+        intervals = builder.build();
+        if (addressLength == 4) {
+            ipv4 = intervals;
+        } else {
+            ipv6 = intervals;
+        }
+
+        return intervals;
+    }
+
+    /**
+     * Compares two addresses of the same length, as unsigned numbers
+     */
+    static int compare(byte[] a, byte[] b) {
+
+        for (int i = 0; i < a.length; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the address after the given one, or null if it is the last
+     */
+    private static byte[] increment(byte[] address) {
+
+        byte[] next = address.clone();
+        for (int i = next.length - 1; i >= 0; i--) {
+            if (++next[i] != 0) {
+                return next;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the address before the given one, which must not be the first
+     */
+    private static byte[] decrement(byte[] address) {
+
+        byte[] previous = address.clone();
+        for (int i = previous.length - 1; i >= 0; i--) {
+            if (previous[i]-- != 0) {
+                break;
+            }
+        }
+
+        return previous;
+    }
+
+    /**
+     * Parses a literal IPv4 or IPv6 address. Names are never resolved.
+     *
+     * @param address the address, as given by {@link javax.servlet.ServletRequest#getRemoteAddr()}
+     * @return the bytes of the address (IPv4-mapped IPv6 addresses are
+     * returned as IPv4 ones), or null if it is not a literal address
+     */
+    public static byte[] parseAddress(String address) {
+
+        address = address.trim();
+
+        if (address.indexOf(':') >= 0) {
+
+            if (!address.startsWith("[")) {
+                address = "[" + address + "]";
+            }
+
+            //a bracketed address is only ever parsed as a literal, never looked up
+            try {
+                return InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException | SecurityException e) {
+                return null;
+            }
+        }
+
+        byte[] bytes = new byte[4];
+        int part = 0;
+        int value = -1;
+
+        for (int i = 0; i <= address.length(); i++) {
+
+            char c = i < address.length() ? address.charAt(i) : '.';
+
+            if (c == '.') {
+                if (value < 0 || part == 4) {
+                    return null;
+                }
+                bytes[part++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        return part == 4 ? bytes : null;
+    }
+
+    /**
+     * A range as it was added: its first and last addresses, and its value
+     */
+    private static class Prefix {
+
+        private final byte[] start;
+        private final byte[] end;
+        private final int length;
+        private final Object value;
+        private final int order;
+
+        private Prefix(byte[] address, int length, Object value, int order) {
+
+            this.start = address.clone();
+            this.end = address.clone();
+            this.length = length;
+            this.value = value;
+            this.order = order;
+
+            for (int bit = length; bit < address.length * 8; bit++) {
+                int mask = 0x80 >>> (bit % 8);
+                start[bit / 8] &= ~mask;
+                end[bit / 8] |= mask;
+            }
+        }
+
+        private boolean isSameRange(Prefix p) {
+            return length == p.length && compare(start, p.start) == 0;
+        }
+    }
+
+    /**
+     * Disjoint intervals of addresses of a single family, in order, each with
+     * a value. The first and last addresses of the intervals are held back to
+     * back in two flat arrays.
+     */
+    static final class Intervals {
+
+        final int addressLength;
+        final int count;
+        final byte[] starts;
+        final byte[] ends;
+        final Object[] values;
+
+        private Intervals(int addressLength, int count, byte[] starts, byte[] ends, Object[] values) {
+            this.addressLength = addressLength;
+            this.count = count;
+            this.starts = starts;
+            this.ends = ends;
+            this.values = values;
+        }
+
+        /**
+         * @return the index of the interval containing the given address, or
+         * -1 if there is none
+         */
+        int find(byte[] address) {
+
+            if (address.length != addressLength) {
+                return -1;
+            }
+
+            //the last interval that starts at or before the address
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(starts, mid, address) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return high >= 0 && compare(ends, high, address) >= 0 ? high : -1;
+        }
+
+        private int compare(byte[] addresses, int index, byte[] address) {
+
+            int offset = index * addressLength;
+            for (int i = 0; i < addressLength; i++) {
+                int c = (addresses[offset + i] & 0xff) - (address[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+
+            return 0;
+        }
+
+        /**
+         * Collects intervals in order, merging those that meet and have the
+         * same value
+         */
+        private static class Builder {
+
+            private final int addressLength;
+            private final ArrayList<byte[]> starts = new ArrayList<>();
+            private final ArrayList<byte[]> ends = new ArrayList<>();
+            private final ArrayList<Object> values = new ArrayList<>();
+
+            private Builder(int addressLength) {
+                this.addressLength = addressLength;
+            }
+
+            /**
+             * Adds the part of the given range from the cursor to its end
+             *
+             * @return the new cursor
+             */
+            private byte[] add(byte[] cursor, Prefix p) {
+
+                if (cursor == null || CidrMap.compare(cursor, p.end) > 0) {
+                    return cursor;
+                }
+
+                add(cursor, p.end, p.value);
+                return increment(p.end);
+            }
+
+            private void add(byte[] start, byte[] end, Object value) {
+
+                int last = values.size() - 1;
+                if (last >= 0 && values.get(last) == value) {
+                    byte[] next = increment(ends.get(last));
+                    if (next != null && CidrMap.compare(next, start) == 0) {
+                        ends.set(last, end);
+                        return;
+                    }
+                }
+
+                starts.add(start);
+                ends.add(end);
+                values.add(value);
+            }
+
+            private Intervals build() {
+
+                int count = values.size();
+                byte[] startBytes = new byte[count * addressLength];
+                byte[] endBytes = new byte[count * addressLength];
+
+                for (int i = 0; i < count; i++) {
+                    System.arraycopy(starts.get(i), 0, startBytes, i * addressLength, addressLength);
+                    System.arraycopy(ends.get(i), 0, endBytes, i * addressLength, addressLength);
+                }
+
+                return new Intervals(addressLength, count, startBytes, endBytes, values.toArray());
+            }
+        }
+    }
+}
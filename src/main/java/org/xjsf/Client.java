@@ -4,6 +4,8 @@ import com.google.gson.annotations.Expose;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.lang.time.DateUtils;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.ElementList;
@@ -11,41 +13,120 @@ import org.simpleframework.xml.ElementList;
 public class Client {
 	
 	public enum Granularity {day,hour,minute} ;
+	
+	/**
+	 * How requests are admitted against a client's limits. 
+	 * <ul>
+	 * <li><b>fixedWindow</b> counts usage within each calendar period, so a client can use up to twice its limit across the end of one period and the start of the next</li>
+	 * <li><b>slidingWindow</b> also counts the previous period, weighted by how much of it still falls within a period's length of now</li>
+	 * <li><b>tokenBucket</b> admits a burst of requests, and then no more than a steady refill rate. Period limits still apply on top of this</li>
+	 * </ul>
+	 */
+	public enum Algorithm {fixedWindow,slidingWindow,tokenBucket} ;
 
 	@Expose
 	@Attribute
 	private String _name ;
 	
 	private String _password ;
-		
+	
+	//only set for snapshots; live usage is kept by the counters
 	@Expose
-	@ElementList(inline=true)
+	@ElementList(inline=true, required=false)
 	private ArrayList<Usage> _usage ;
 	
+	private final UsageCounter[] _counters ;
+	
+	private final Algorithm _algorithm ;
+	private final int _burst ;
+	private final double _refillRate ;
+	private final TokenBucket _bucket ;
+	
+	//when this client last made a request, to the nearest second; kept by the client table
+	private volatile long _lastUsed ;
+	
 	public Client(String name, String password, int minLimit, int hourLimit, int dayLimit) {
+		this(name, password, minLimit, hourLimit, dayLimit, Algorithm.fixedWindow, 0, 0) ;
+	}
+	
+	/**
+	 * Initialises a new client
+	 * 
+	 * @param name the name of the client
+	 * @param password the password the client must give, or null if it need not give one
+	 * @param minLimit the number of units the client may use per minute, or a value <= 0 for no limit
+	 * @param hourLimit the number of units the client may use per hour, or a value <= 0 for no limit
+	 * @param dayLimit the number of units the client may use per day, or a value <= 0 for no limit
+	 * @param algorithm how requests are admitted against these limits
+	 * @param burst the number of units a token bucket holds, or a value <= 0 for one second's refill
+	 * @param refillRate the number of units per second a token bucket is refilled with, or a value <= 0 to refill it at the minute limit
+	 */
+	public Client(String name, String password, int minLimit, int hourLimit, int dayLimit, Algorithm algorithm, int burst, double refillRate) {
 		_name = name ;
 		_password = password ;
+		_algorithm = algorithm ;
+		_burst = burst ;
+		_refillRate = refillRate ;
 		
-		_usage = new ArrayList<>() ;
-		_usage.add(new Usage(Granularity.day, dayLimit)) ;
-		_usage.add(new Usage(Granularity.hour, hourLimit)) ;
-		_usage.add(new Usage(Granularity.minute, minLimit)) ;
+		boolean sliding = (algorithm == Algorithm.slidingWindow) ;
+		
+		_counters = new UsageCounter[Granularity.values().length] ;
+		_counters[Granularity.day.ordinal()] = new UsageCounter(Granularity.day, dayLimit, sliding) ;
+		_counters[Granularity.hour.ordinal()] = new UsageCounter(Granularity.hour, hourLimit, sliding) ;
+		_counters[Granularity.minute.ordinal()] = new UsageCounter(Granularity.minute, minLimit, sliding) ;
+		
+		if (algorithm == Algorithm.tokenBucket) {
+			
+			double rate = refillRate > 0 ? refillRate : minLimit / 60.0 ;
+			
+			if (rate > 0) {
+				_bucket = new TokenBucket(burst > 0 ? burst : (int)Math.max(1, Math.ceil(rate)), rate) ;
+			} else {
+				_bucket = null ;
+			}
+		} else {
+			_bucket = null ;
+		}
 	}
 	
 	public Client(String name, String password, Client client) {
-		_name = name ;
-		_password = password ;
+		this(name, password, client.getMinuteUsage().getLimit(), client.getHourUsage().getLimit(), client.getDayUsage().getLimit(), client._algorithm, client._burst, client._refillRate) ;
+	}
+	
+	private Client(Client client) {
+		_name = client._name ;
+		_password = null ;
+		_counters = null ;
+		_algorithm = client._algorithm ;
+		_burst = client._burst ;
+		_refillRate = client._refillRate ;
+		_bucket = null ;
 		
 		_usage = new ArrayList<>() ;
-		_usage.add(new Usage(Granularity.day, client.getDayUsage().getLimit())) ;
-		_usage.add(new Usage(Granularity.hour, client.getHourUsage().getLimit())) ;
-		_usage.add(new Usage(Granularity.minute, client.getMinuteUsage().getLimit())) ;
+		for (UsageCounter counter:client._counters) {
+			_usage.add(counter.snapshot()) ;
+		}
 	}
 	
 	public String getName() {
 		return _name ;
 	}
 	
+	public Algorithm getAlgorithm() {
+		return _algorithm ;
+	}
+	
+	long getLastUsed() {
+		return _lastUsed ;
+	}
+	
+	void touch(long now) {
+		//only written once a second, so clients shared by many threads are not contended 
+		if (now - _lastUsed >= 1000) {
+			_lastUsed = now ;
+		}
+	}
+	
 	public boolean passwordMatches(String password) {
 			
 		if (_password == null) {
@@ -55,33 +136,321 @@ public class Client {
 		return _password.equals(password) ;
 	}
 
+	/**
+	 * Charges this client for a request. This is safe to call concurrently, and allocates nothing unless a usage period has ended. 
+	 * 
+	 * @param usageCost the cost of the request
+	 * @return true if any of this client's limits are now exceeded
+	 */
 	public boolean update(int usageCost) {
 		
+		long now = System.currentTimeMillis() ;
 		boolean limitExceeded = false ;
 		
-		for (Usage u:_usage) {
+		for (UsageCounter c:_counters) {
 			
-			if (u.update(usageCost)) {
+			if (c.update(usageCost, now)) {
                         limitExceeded = true ;
                     }
 		}
 		
+		if (_bucket != null && _bucket.update(usageCost, System.nanoTime())) {
+			limitExceeded = true ;
+		}
+		
 		return limitExceeded ;
 	}
 	
+	/**
+	 * Returns how long this client must wait before it is back within all of its limits, assuming it makes no further requests
+	 * 
+	 * @return the delay in milliseconds, or 0 if this client is within all of its limits
+	 */
+	public long getRetryDelay() {
+		
+		long now = System.currentTimeMillis() ;
+		long delay = 0 ;
+		
+		for (UsageCounter c:_counters) {
+			delay = Math.max(delay, c.getRetryDelay(now)) ;
+		}
+		
+		if (_bucket != null) {
+			delay = Math.max(delay, _bucket.getRetryDelay(System.nanoTime())) ;
+		}
+		
+		return delay ;
+	}
+	
+	/**
+	 * Takes over the usage of the given client, which this one replaces. The current periods are shared rather than copied, 
+	 * so units charged to the previous client by requests already under way are still counted. 
+	 * 
+	 * @param previous the client this one replaces
+	 */
+	void inheritUsage(Client previous) {
+		
+		for (int i=0 ; i<_counters.length ; i++) {
+			_counters[i].set(previous._counters[i].get()) ;
+		}
+		
+		if (_bucket != null && previous._bucket != null) {
+			_bucket._fullAt.set(previous._bucket._fullAt.get()) ;
+		}
+		
+		_lastUsed = previous._lastUsed ;
+	}
+	
+	/**
+	 * @param other another client
+	 * @return true if the other client has the same password and limits as this one
+	 */
+	boolean hasSameSettings(Client other) {
+		
+		if (_password == null ? other._password != null : !_password.equals(other._password)) {
+			return false ;
+		}
+		
+		for (int i=0 ; i<_counters.length ; i++) {
+			if (_counters[i]._limit != other._counters[i]._limit) {
+				return false ;
+			}
+		}
+		
+		return _algorithm == other._algorithm && _burst == other._burst && _refillRate == other._refillRate ;
+	}
+	
+	/**
+	 * Returns a copy of this client with its current usage, for reporting. Usage is only included in snapshots. 
+	 * 
+	 * @return a snapshot of this client
+	 */
+	public Client snapshot() {
+		if (_counters == null) {
+			return this ;
+		}
+		return new Client(this) ;
+	}
+	
 	public Usage getMinuteUsage() {
-		return _usage.get(Granularity.minute.ordinal()) ;
+		return getUsage(Granularity.minute) ;
 	}
 	
 	public Usage getHourUsage() {
-		return _usage.get(Granularity.hour.ordinal()) ;
+		return getUsage(Granularity.hour) ;
 	}
 	
 	public Usage getDayUsage() {
-		return _usage.get(Granularity.day.ordinal()) ;
+		return getUsage(Granularity.day) ;
+	}
+	
+	private Usage getUsage(Granularity granularity) {
+		if (_counters == null) {
+			return _usage.get(granularity.ordinal()) ;
+		}
+		return _counters[granularity.ordinal()].snapshot() ;
+	}
+	
+	/**
+	 * Counts the units used within the current period of a single granularity. The period is swapped atomically when it ends, 
+	 * so counts are never lost to concurrent requests. 
+	 * 
+	 * Sliding counters estimate the usage over the last period's length as the current count plus the previous period's count, 
+	 * weighted by the fraction of the current period still to run. 
+	 * 
+	 * A counter is its own reference to the current period, and a period its own count, to keep the state held for each client small. 
+	 */
+	@SuppressWarnings("serial")
+	private static class UsageCounter extends AtomicReference<Window> {
+		
+		private final Granularity _granularity ;
+		private final int _limit ;
+		private final boolean _sliding ;
+		
+		private UsageCounter(Granularity granularity, int limit, boolean sliding) {
+			_granularity = granularity ;
+			_limit = limit ;
+			_sliding = sliding ;
+			set(createWindow(System.currentTimeMillis(), 0, null)) ;
+		}
+		
+		private boolean isExceeded(Window w, long count, long now) {
+			
+			if (_limit <= 0) {
+				return false ;
+			}
+			
+			if (!_sliding || w._previousCount == 0) {
+				return count > _limit ;
+			}
+			
+			return count + (double)w._previousCount * (w._end - now) / (w._end - w._start) > _limit ;
+		}
+		
+		private boolean update(int usageCost, long now) {
+			
+			while (true) {
+				Window w = get() ;
+				
+				if (now < w._end) {
+					return isExceeded(w, w.addAndGet(usageCost), now) ;
+				}
+				
+				Window next = createWindow(now, usageCost, w) ;
+				
+				if (compareAndSet(w, next)) {
+					return isExceeded(next, usageCost, now) ;
+				}
+			}
+		}
+		
+		private long getRetryDelay(long now) {
+			
+			Window w = get() ;
+			
+			if (now >= w._end || !isExceeded(w, w.get(), now)) {
+				return 0 ;
+			}
+			
+			long count = w.get() ;
+			
+			if (!_sliding) {
+				return w._end - now ;
+			}
+			
+			double length = w._end - w._start ;
+			
+			if (count <= _limit) {
+				//within this period, once enough of the previous one has slid out
+				return (long)Math.ceil(w._end - (_limit - count) * length / w._previousCount - now) ;
+			}
+			
+			//within the next period, once enough of this one has slid out
+			return (long)Math.ceil(w._end + length - _limit * length / count - now) ;
+		}
+		
+		private Window createWindow(long now, long count, Window previous) {
+			
+			//periods follow the local calendar, so they are only worked out when one ends
+			Date start = DateUtils.truncate(new Date(now), getGranularityInt()) ;
+			Date end ;
+			
+			switch(_granularity) {
+			case minute:
+				end = DateUtils.addMinutes(start, 1) ;
+				break ;
+			case hour:
+				end = DateUtils.addHours(start, 1) ;
+				break ;
+			default:
+				end = DateUtils.addDays(start, 1) ;
+				break ;
+			}
+			
+			long previousCount = 0 ;
+			if (_sliding && previous != null && previous._end == start.getTime()) {
+				previousCount = previous.get() ;
+			}
+			
+			return new Window(start.getTime(), end.getTime(), count, previousCount) ;
+		}
+		
+		private int getGranularityInt() {
+			switch(_granularity) {
+			case day:
+				return Calendar.DAY_OF_MONTH ;
+			case hour:
+				return Calendar.HOUR ;
+			case minute:
+				return Calendar.MINUTE ;
+			}
+			
+			return -1 ;
+		}
+		
+		private Usage snapshot() {
+			
+			Window w = get() ;
+			
+			if (System.currentTimeMillis() >= w._end) {
+				//the period has ended without being used since
+				w = createWindow(System.currentTimeMillis(), 0, w) ;
+			}
+			
+			return new Usage(_granularity, new Date(w._start), new Date(w._end), (int) Math.min(Integer.MAX_VALUE, w.get()), _limit) ;
+		}
 	}
 	
-	public class Usage {
+	/**
+	 * A single period of a usage counter, and the number of units used within it
+	 */
+	@SuppressWarnings("serial")
+	private static class Window extends AtomicLong {
+		
+		private final long _start ;
+		private final long _end ;
+		
+		//the count of the period just before this one, for sliding counters
+		private final long _previousCount ;
+		
+		private Window(long start, long end, long count, long previousCount) {
+			_start = start ;
+			_end = end ;
+			set(count) ;
+			_previousCount = previousCount ;
+		}
+	}
+	
+	/**
+	 * A token bucket, kept as the single time at which it would next be full (the generic cell rate algorithm). 
+	 * A request is admitted if the bucket holds enough tokens for it, and only admitted requests take tokens. 
+	 */
+	private static class TokenBucket {
+		
+		//nanoseconds taken to refill a single token
+		private final long _interval ;
+		
+		//nanoseconds taken to refill the whole bucket
+		private final long _capacity ;
+		
+		private final AtomicLong _fullAt ;
+		
+		private TokenBucket(int burst, double refillRate) {
+			_interval = Math.max(1, Math.round(1e9 / refillRate)) ;
+			_capacity = burst * _interval ;
+			_fullAt = new AtomicLong(System.nanoTime()) ;
+		}
+		
+		private boolean update(int usageCost, long now) {
+			
+			while (true) {
+				long fullAt = _fullAt.get() ;
+				
+				long nextFullAt = (fullAt - now < 0 ? now : fullAt) + usageCost * _interval ;
+				
+				if (nextFullAt - now > _capacity) {
+					return true ;
+				}
+				
+				if (_fullAt.compareAndSet(fullAt, nextFullAt)) {
+					return false ;
+				}
+			}
+		}
+		
+		private long getRetryDelay(long now) {
+			
+			//until there is room for a single token
+			long delay = _fullAt.get() + _interval - _capacity - now ;
+			
+			return delay > 0 ? (delay + 999999) / 1000000 : 0 ;
+		}
+	}
+	
+	/**
+	 * The usage of a client within a single period, as it stood when it was taken
+	 */
+	public static class Usage {
 		
 		@Expose
 		@Attribute(name="granularity") 
@@ -103,12 +472,29 @@ public class Client {
 		@Attribute(name="unitLimit")
 		int _limit ;
 		
+		/**
+		 * Initialises the usage of the current period of the given granularity, within which nothing has been used yet
+		 * 
+		 * @param granularity the length of the period
+		 * @param limit the number of units that may be used within the period, or 0 or less for no limit
+		 */
 		public Usage(Granularity granularity, int limit) {
 			
+			Window w = new UsageCounter(granularity, limit, false).get() ;
+			
 			_granularity = granularity ;
+			_start = new Date(w._start) ;
+			_end = new Date(w._end) ;
 			_count = 0 ;
-			setPeriod() ;
+			_limit = limit ;
+		}
+		
+		private Usage(Granularity granularity, Date start, Date end, int count, int limit) {
 			
+			_granularity = granularity ;
+			_start = start ;
+			_end = end ;
+			_count = count ;
 			_limit = limit ;
 		}
 		
@@ -131,55 +517,6 @@ public class Client {
 		public boolean limitExceeded() {
 			return (_limit > 0 && _count > _limit) ;
 		}
-		
-		private int getGranularityInt() {
-			switch(_granularity) {
-			case day:
-				return Calendar.DAY_OF_MONTH ;
-			case hour:
-				return Calendar.HOUR ;
-			case minute:
-				return Calendar.MINUTE ;
-			}
-			
-			return -1 ;
-		}
-		
-		private void setPeriod() {
-			
-			_start = new Date() ;
-			_end = new Date() ;
-			
-			DateUtils.truncate(_start, getGranularityInt()) ;
-			DateUtils.truncate(_end, getGranularityInt()) ;
-			
-			switch(_granularity) {
-			case minute:
-				_end = DateUtils.addMinutes(_end, 1) ;
-				break ;
-			case hour:
-				_end = DateUtils.addHours(_end, 1) ;
-				break ;
-			case day:
-				_end = DateUtils.addDays(_end, 1) ;
-				break ;
-			}
-			
-		}
-		
-		protected boolean update(int usageCost) {
-			
-			Date now = new Date() ;
-			
-			if (now.after(_end)) {
-				setPeriod() ;
-				_count = usageCost ;
-			} else {
-				_count = _count + usageCost ;
-			}
-			
-			return limitExceeded() ;
-		}
 	}
 	
 }
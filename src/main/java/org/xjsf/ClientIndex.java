@@ -0,0 +1,648 @@
+package org.xjsf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The clients of a client list, packed into a single buffer. Clients are only
+ * turned into {@link Client} objects when they are looked up, so even very
+ * large lists take little memory and no time to walk.
+ * <p>
+ * The buffer can be written next to the client file and memory-mapped when the
+ * list is next loaded, so that the XML does not need to be parsed again unless
+ * it has changed. Its layout is:
+ * <ul>
+ * <li>a header, with the SHA-256 hash of the content of the client file it
+ * was built from, and the offsets and sizes of the other sections</li>
+ * <li>the default client and authentication settings</li>
+ * <li>the distinct sets of limits that clients have</li>
+ * <li>a record for each client: its name, limits and password</li>
+ * <li>an open-addressed hash table of records, by name</li>
+ * <li>an open-addressed hash table of records, by the SHA-256 hashes of api
+ * keys</li>
+ * <li>the address ranges of clients, flattened into sorted, disjoint intervals
+ * (see {@link CidrMap}), each with the first and last addresses and the record
+ * of the client with the longest range covering it; IPv4 intervals first, then
+ * IPv6 ones</li>
+ * </ul>
+ * Strings are stored as their length in UTF-8 bytes (or -1 for null) followed
+ * by the bytes. Clients are found by name or key with a probe of a hash table,
+ * and by address with a binary search of the intervals, straight from the
+ * buffer. Buffers are only ever read with absolute gets, so they can be shared
+ * between threads.
+ */
+final class ClientIndex {
+
+    private static final int MAGIC = 0x584a4349;
+    private static final int VERSION = 3;
+    private static final int HEADER_LENGTH = 88;
+    private static final int PROFILE_LENGTH = 25;
+    private static final int NAME_SLOT_LENGTH = 8;
+    private static final int KEY_HASH_LENGTH = 32;
+    private static final int KEY_SLOT_LENGTH = KEY_HASH_LENGTH + 4;
+
+    //offsets of header fields
+    private static final int SOURCE_HASH = 8;
+    private static final int PROFILES = 40;
+    private static final int CLIENT_COUNT = 44;
+    private static final int RECORDS = 48;
+    private static final int NAME_SLOTS = 52;
+    private static final int NAME_SLOT_COUNT = 56;
+    private static final int KEY_SLOTS = 60;
+    private static final int KEY_SLOT_COUNT = 64;
+    private static final int IPV4_RANGES = 68;
+    private static final int IPV4_RANGE_COUNT = 72;
+    private static final int IPV6_RANGES = 76;
+    private static final int IPV6_RANGE_COUNT = 80;
+    private static final int SETTINGS = 84;
+    private static final int SOURCE_HASH_LENGTH = 32;
+
+    private final ByteBuffer buffer;
+
+    private ClientIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens the index at the given file, if it was built from the given
+     * content of the client file. The content is compared rather than the
+     * file's modification time, which may not change for an edit made soon
+     * after the index was built.
+     *
+     * @param indexFile the file the index was written to
+     * @param sourceHash the SHA-256 hash of the content of the client file
+     * @return the memory-mapped index, or null if there is no index for this
+     * content of the client file
+     * @throws IOException if the index cannot be read
+     */
+    static ClientIndex open(File indexFile, byte[] sourceHash) throws IOException {
+
+        if (!indexFile.isFile() || indexFile.length() < HEADER_LENGTH) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+
+        ClientIndex index = new ClientIndex(buffer);
+        return sourceHash.length == SOURCE_HASH_LENGTH && index.compareBytes(SOURCE_HASH, sourceHash) == 0 ? index : null;
+    }
+
+    /**
+     * Writes the given index to the given file, replacing any index already
+     * there in a single step, so that lists being loaded never see a partly
+     * written one
+     */
+    static void write(byte[] index, File indexFile) throws IOException {
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        Files.write(tempFile.toPath(), index);
+
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+    }
+
+    static ClientIndex wrap(byte[] index) {
+        return new ClientIndex(ByteBuffer.wrap(index));
+    }
+
+    int getClientCount() {
+        return buffer.getInt(CLIENT_COUNT);
+    }
+
+    boolean hasKeys() {
+        return buffer.getInt(KEY_SLOT_COUNT) > 0;
+    }
+
+    boolean hasAddresses() {
+        return buffer.getInt(IPV4_RANGE_COUNT) > 0 || buffer.getInt(IPV6_RANGE_COUNT) > 0;
+    }
+
+    /**
+     * Returns the default client and authentication settings: the default
+     * client's password, then the cookie for user names, the cookie for
+     * passwords, the header for api keys and the parameter for api keys
+     */
+    String[] getSettings() {
+
+        int offset = buffer.getInt(SETTINGS) + 4;
+        String[] settings = new String[5];
+
+        for (int i = 0; i < settings.length; i++) {
+            settings[i] = getString(offset);
+            offset = skipString(offset);
+        }
+
+        return settings;
+    }
+
+    Client createDefaultClient() {
+        int offset = buffer.getInt(SETTINGS);
+        return createClient("anonymous", getString(offset + 4), buffer.getInt(offset));
+    }
+
+    /**
+     * @return a new client for the record with the given name, or null if
+     * there is none
+     */
+    Client createClient(String name) {
+        int record = findRecord(name);
+        return record != 0 ? createClient(record) : null;
+    }
+
+    /**
+     * @return the name of the client with the given api key hash, or null if
+     * there is none
+     */
+    String getClientNameForKeyHash(byte[] keyHash) {
+
+        int slots = buffer.getInt(KEY_SLOTS);
+        int mask = buffer.getInt(KEY_SLOT_COUNT) - 1;
+
+        if (keyHash.length != KEY_HASH_LENGTH || mask < 0) {
+            return null;
+        }
+
+        int slot = ((keyHash[0] & 0xff) << 24 | (keyHash[1] & 0xff) << 16 | (keyHash[2] & 0xff) << 8 | (keyHash[3] & 0xff)) & mask;
+
+        while (true) {
+            int pos = slots + slot * KEY_SLOT_LENGTH;
+            int record = buffer.getInt(pos + KEY_HASH_LENGTH);
+
+            if (record == 0) {
+                return null;
+            }
+
+            boolean matches = true;
+            for (int i = 0; i < KEY_HASH_LENGTH && matches; i++) {
+                matches = buffer.get(pos + i) == keyHash[i];
+            }
+
+            if (matches) {
+                return getString(record);
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @param address the 4 bytes of an IPv4 address, or the 16 bytes of an
+     * IPv6 address
+     * @return the name of the client with the longest address range
+     * containing the address, or null if there is none
+     */
+    String getClientNameForAddress(byte[] address) {
+
+        int ranges;
+        int count;
+        if (address.length == 4) {
+            ranges = buffer.getInt(IPV4_RANGES);
+            count = buffer.getInt(IPV4_RANGE_COUNT);
+        } else if (address.length == 16) {
+            ranges = buffer.getInt(IPV6_RANGES);
+            count = buffer.getInt(IPV6_RANGE_COUNT);
+        } else {
+            return null;
+        }
+
+        int rangeLength = address.length * 2 + 4;
+
+        //the last interval that starts at or before the address
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compareBytes(ranges + mid * rangeLength, address) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (high < 0) {
+            return null;
+        }
+
+        int range = ranges + high * rangeLength;
+        if (compareBytes(range + address.length, address) < 0) {
+            return null;
+        }
+
+        return getString(buffer.getInt(range + address.length * 2));
+    }
+
+    String[] getClientNames() {
+
+        String[] names = new String[getClientCount()];
+
+        int offset = buffer.getInt(RECORDS);
+        for (int i = 0; i < names.length; i++) {
+            names[i] = getString(offset);
+            offset = skipString(skipString(offset) + 4);
+        }
+
+        return names;
+    }
+
+    private Client createClient(int record) {
+
+        String name = getString(record);
+        int offset = skipString(record);
+        int profile = buffer.getInt(offset);
+
+        return createClient(name, getString(offset + 4), profile);
+    }
+
+    private Client createClient(String name, String password, int profile) {
+
+        int offset = buffer.getInt(PROFILES) + profile * PROFILE_LENGTH;
+
+        return new Client(name, password,
+                buffer.getInt(offset), buffer.getInt(offset + 4), buffer.getInt(offset + 8),
+                Client.Algorithm.values()[buffer.get(offset + 12)], buffer.getInt(offset + 13), buffer.getDouble(offset + 17));
+    }
+
+    private int findRecord(String name) {
+
+        int slots = buffer.getInt(NAME_SLOTS);
+        int mask = buffer.getInt(NAME_SLOT_COUNT) - 1;
+        int hash = name.hashCode();
+        int slot = spread(hash) & mask;
+        byte[] nameBytes = null;
+
+        while (true) {
+            int pos = slots + slot * NAME_SLOT_LENGTH;
+            int record = buffer.getInt(pos + 4);
+
+            if (record == 0) {
+                return 0;
+            }
+
+            if (buffer.getInt(pos) == hash) {
+                //only encoded once a record with the same hash turns up
+                if (nameBytes == null) {
+                    nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                }
+                if (stringEquals(record, nameBytes)) {
+                    return record;
+                }
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Compares the bytes at the given offset with the given bytes (such as an
+     * address), as unsigned numbers
+     */
+    private int compareBytes(int offset, byte[] bytes) {
+
+        for (int i = 0; i < bytes.length; i++) {
+            int c = (buffer.get(offset + i) & 0xff) - (bytes[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    private boolean stringEquals(int offset, byte[] bytes) {
+
+        if (buffer.getInt(offset) != bytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(offset + 4 + i) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String getString(int offset) {
+
+        int length = buffer.getInt(offset);
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 4 + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int skipString(int offset) {
+        return offset + 4 + Math.max(0, buffer.getInt(offset));
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int slotCount(int entries) {
+        return Integer.highestOneBit(Math.max(1, entries * 2 - 1)) << 1;
+    }
+
+    /**
+     * Collects the clients of a client list, as it is parsed, and packs them
+     * into an index
+     */
+    static class Builder {
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        private final LinkedHashMap<Profile, Integer> profiles = new LinkedHashMap<>();
+        private String defaultPassword;
+        private int defaultProfile = -1;
+        private String cookieForUsername;
+        private String cookieForPassword;
+        private String keyHeader = "X-API-Key";
+        private String keyParam;
+
+        void setCookies(String cookieForUsername, String cookieForPassword) {
+            this.cookieForUsername = cookieForUsername;
+            this.cookieForPassword = cookieForPassword;
+        }
+
+        void setKeyHeader(String keyHeader) {
+            this.keyHeader = keyHeader;
+        }
+
+        void setKeyParam(String keyParam) {
+            this.keyParam = keyParam;
+        }
+
+        void setDefaultClient(String password, int minLimit, int hourLimit, int dayLimit, Client.Algorithm algorithm, int burst, double refillRate) {
+            defaultPassword = password;
+            defaultProfile = getProfile(new Profile(minLimit, hourLimit, dayLimit, algorithm, burst, refillRate));
+        }
+
+        /**
+         * Adds a client, replacing any added before with the same name
+         *
+         * @param addresses the address ranges the client is identified by
+         * (may be empty)
+         * @param keyHash the SHA-256 hash of the client's api key, or null if
+         * it has none
+         */
+        void addClient(String name, String password, int minLimit, int hourLimit, int dayLimit, Client.Algorithm algorithm, int burst, double refillRate,
+                List<String> addresses, byte[] keyHash) {
+
+            int profile = getProfile(new Profile(minLimit, hourLimit, dayLimit, algorithm, burst, refillRate));
+
+            entries.remove(name);
+            entries.put(name, new Entry(name, password, profile, addresses, keyHash));
+        }
+
+        private int getProfile(Profile profile) {
+
+            Integer index = profiles.get(profile);
+            if (index == null) {
+                index = profiles.size();
+                profiles.put(profile, index);
+            }
+
+            return index;
+        }
+
+        /**
+         * Packs the clients added so far into an index
+         *
+         * @param sourceHash the SHA-256 hash of the content of the client
+         * file
+         * @return the index
+         */
+        byte[] build(byte[] sourceHash) throws IOException {
+
+            if (sourceHash.length != SOURCE_HASH_LENGTH) {
+                throw new IllegalArgumentException("Source hash must be " + SOURCE_HASH_LENGTH + " bytes");
+            }
+
+            if (defaultProfile < 0) {
+                //if there is no default client, make one with no access limits
+                setDefaultClient(null, 0, 0, 0, Client.Algorithm.fixedWindow, 0, 0);
+            }
+
+            ByteArrayOutputStream settingsBytes = new ByteArrayOutputStream();
+            DataOutputStream settings = new DataOutputStream(settingsBytes);
+            settings.writeInt(defaultProfile);
+            writeString(settings, defaultPassword);
+            writeString(settings, cookieForUsername);
+            writeString(settings, cookieForPassword);
+            writeString(settings, keyHeader);
+            writeString(settings, keyParam);
+
+            ByteArrayOutputStream profileBytes = new ByteArrayOutputStream();
+            DataOutputStream profileOut = new DataOutputStream(profileBytes);
+            for (Profile p : profiles.keySet()) {
+                profileOut.writeInt(p.minLimit);
+                profileOut.writeInt(p.hourLimit);
+                profileOut.writeInt(p.dayLimit);
+                profileOut.writeByte(p.algorithm.ordinal());
+                profileOut.writeInt(p.burst);
+                profileOut.writeDouble(p.refillRate);
+            }
+
+            int recordsStart = HEADER_LENGTH + settingsBytes.size() + profileBytes.size();
+
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            DataOutputStream records = new DataOutputStream(recordBytes);
+            int keyCount = 0;
+            CidrMap<Integer> ranges = new CidrMap<>();
+
+            for (Entry entry : entries.values()) {
+                entry.record = recordsStart + records.size();
+                writeString(records, entry.name);
+                records.writeInt(entry.profile);
+                writeString(records, entry.password);
+
+                if (entry.keyHash != null) {
+                    keyCount++;
+                }
+                for (String range : entry.addresses) {
+                    ranges.put(range, entry.record);
+                }
+            }
+
+            int nameSlotsStart = recordsStart + recordBytes.size();
+            int nameSlotCount = slotCount(entries.size());
+            ByteBuffer nameSlots = ByteBuffer.allocate(nameSlotCount * NAME_SLOT_LENGTH);
+
+            for (Entry entry : entries.values()) {
+                int hash = entry.name.hashCode();
+                int slot = spread(hash) & (nameSlotCount - 1);
+                while (nameSlots.getInt(slot * NAME_SLOT_LENGTH + 4) != 0) {
+                    slot = (slot + 1) & (nameSlotCount - 1);
+                }
+                nameSlots.putInt(slot * NAME_SLOT_LENGTH, hash);
+                nameSlots.putInt(slot * NAME_SLOT_LENGTH + 4, entry.record);
+            }
+
+            int keySlotsStart = nameSlotsStart + nameSlots.capacity();
+            int keySlotCount = keyCount > 0 ? slotCount(keyCount) : 0;
+            ByteBuffer keySlots = ByteBuffer.allocate(keySlotCount * KEY_SLOT_LENGTH);
+
+            for (Entry entry : entries.values()) {
+                if (entry.keyHash == null) {
+                    continue;
+                }
+                int slot = ByteBuffer.wrap(entry.keyHash).getInt(0) & (keySlotCount - 1);
+                while (keySlots.getInt(slot * KEY_SLOT_LENGTH + KEY_HASH_LENGTH) != 0) {
+                    slot = (slot + 1) & (keySlotCount - 1);
+                }
+                for (int i = 0; i < KEY_HASH_LENGTH; i++) {
+                    keySlots.put(slot * KEY_SLOT_LENGTH + i, entry.keyHash[i]);
+                }
+                keySlots.putInt(slot * KEY_SLOT_LENGTH + KEY_HASH_LENGTH, entry.record);
+            }
+
+            CidrMap.Intervals ipv4Ranges = ranges.flatten(4);
+            CidrMap.Intervals ipv6Ranges = ranges.flatten(16);
+            int ipv4RangesStart = keySlotsStart + keySlots.capacity();
+            int ipv6RangesStart = ipv4RangesStart + ipv4Ranges.count * (4 * 2 + 4);
+
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(ipv6RangesStart + ipv6Ranges.count * (16 * 2 + 4));
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            index.writeInt(MAGIC);
+            index.writeInt(VERSION);
+            index.write(sourceHash);
+            index.writeInt(HEADER_LENGTH + settingsBytes.size());
+            index.writeInt(entries.size());
+            index.writeInt(recordsStart);
+            index.writeInt(nameSlotsStart);
+            index.writeInt(nameSlotCount);
+            index.writeInt(keySlotsStart);
+            index.writeInt(keySlotCount);
+            index.writeInt(ipv4RangesStart);
+            index.writeInt(ipv4Ranges.count);
+            index.writeInt(ipv6RangesStart);
+            index.writeInt(ipv6Ranges.count);
+            index.writeInt(HEADER_LENGTH);
+
+            settingsBytes.writeTo(index);
+            profileBytes.writeTo(index);
+            recordBytes.writeTo(index);
+            index.write(nameSlots.array());
+            index.write(keySlots.array());
+
+            writeRanges(index, ipv4Ranges);
+            writeRanges(index, ipv6Ranges);
+
+            index.flush();
+            return indexBytes.toByteArray();
+        }
+
+        private static void writeRanges(DataOutputStream out, CidrMap.Intervals ranges) throws IOException {
+
+            int length = ranges.addressLength;
+            for (int i = 0; i < ranges.count; i++) {
+                out.write(ranges.starts, i * length, length);
+                out.write(ranges.ends, i * length, length);
+                out.writeInt((Integer) ranges.values[i]);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static class Entry {
+
+        private final String name;
+        private final String password;
+        private final int profile;
+        private final List<String> addresses;
+        private final byte[] keyHash;
+        private int record;
+
+        private Entry(String name, String password, int profile, List<String> addresses, byte[] keyHash) {
+            this.name = name;
+            this.password = password;
+            this.profile = profile;
+            this.addresses = addresses != null ? addresses : new ArrayList<String>();
+            this.keyHash = keyHash;
+        }
+    }
+
+    /**
+     * A distinct set of limits. Large lists tend to give most clients one of a
+     * few sets, so each is only stored once.
+     */
+    private static class Profile {
+
+        private final int minLimit;
+        private final int hourLimit;
+        private final int dayLimit;
+        private final Client.Algorithm algorithm;
+        private final int burst;
+        private final double refillRate;
+
+        private Profile(int minLimit, int hourLimit, int dayLimit, Client.Algorithm algorithm, int burst, double refillRate) {
+            this.minLimit = minLimit;
+            this.hourLimit = hourLimit;
+            this.dayLimit = dayLimit;
+            this.algorithm = algorithm;
+            this.burst = burst;
+            this.refillRate = refillRate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Profile)) {
+                return false;
+            }
+
+            Profile p = (Profile) o;
+            return minLimit == p.minLimit && hourLimit == p.hourLimit && dayLimit == p.dayLimit
+                    && algorithm == p.algorithm && burst == p.burst && Double.compare(refillRate, p.refillRate) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = minLimit;
+            h = 31 * h + hourLimit;
+            h = 31 * h + dayLimit;
+            h = 31 * h + algorithm.ordinal();
+            h = 31 * h + burst;
+            return 31 * h + Double.valueOf(refillRate).hashCode();
+        }
+    }
+}
@@ -1,165 +1,410 @@
 package org.xjsf;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Set;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
+/**
+ * The clients configured in a client file. The file is read as a stream, and its clients are packed into a compact index
+ * (see {@link ClientIndex}), so that lists of hundreds of thousands of clients can be loaded quickly. Clients are only
+ * made into {@link Client} objects once they are first looked up.
+ *
+ * The index can also be kept next to the client file (as <em>clientFile</em>.idx), in which case it is memory-mapped
+ * rather than parsed when the list is next loaded, and only rebuilt once the content of the client file changes.
+ */
 public class ClientList {
-	
+
 	private enum ParamName{client, authentication, unknown} ;
-	
+
 	private static Logger _logger = LoggerFactory.getLogger(ClientList.class) ;
 
-	
-	private HashMap<String,Client> clients ;
+
+	private ClientIndex index ;
+	private final ConcurrentHashMap<String,Client> loadedClients = new ConcurrentHashMap<>() ;
 	private Client defaultClient = null ;
-	
+
 	private String cookieUserName ;
 	private String cookiePassword ;
-	
+
+	private String keyHeader ;
+	private String keyParam ;
+
 	public String getCookieForUsername() {
 		return cookieUserName ;
 	}
-	
+
 	public String getCookieForPassword() {
 		return cookiePassword ;
 	}
-	
+
+	/**
+	 * @return the name of the header that clients give their api keys in
+	 */
+	public String getKeyHeader() {
+		return keyHeader ;
+	}
+
+	/**
+	 * @return the name of the parameter that clients can give their api keys in, or null if keys can only be given in the header
+	 */
+	public String getKeyParam() {
+		return keyParam ;
+	}
+
 	public String[] getClientNames() {
-		Set<String> clientNames = clients.keySet() ;
-		return clientNames.toArray(new String[clientNames.size()]) ;
+		return index.getClientNames() ;
+	}
+
+	public int getClientCount() {
+		return index.getClientCount() ;
 	}
-	
+
+	/**
+	 * Returns the configured client with the given name. The same client is returned every time.
+	 *
+	 * @param name the name of the client
+	 * @return the client with the given name, or null if there is none
+	 */
 	public Client getClient(String name) {
-		return clients.get(name) ;
+
+		Client client = loadedClients.get(name) ;
+		if (client != null) {
+			return client ;
+		}
+
+		client = index.createClient(name) ;
+		if (client == null) {
+			return null ;
+		}
+
+		Client existing = loadedClients.putIfAbsent(name, client) ;
+		return existing != null ? existing : client ;
+	}
+
+	/**
+	 * @param address the address a request came from
+	 * @return the configured client for the longest address range containing the address, or null if there is none
+	 */
+	public Client getClientForAddress(String address) {
+
+		if (!index.hasAddresses()) {
+			return null ;
+		}
+
+		byte[] bytes = CidrMap.parseAddress(address) ;
+		if (bytes == null) {
+			return null ;
+		}
+
+		String name = index.getClientNameForAddress(bytes) ;
+		return name != null ? getClient(name) : null ;
+	}
+
+	/**
+	 * @return true if any clients are identified by api keys
+	 */
+	public boolean hasKeys() {
+		return index.hasKeys() ;
 	}
-	
+
+	/**
+	 * @param keyHash the SHA-256 hash of an api key
+	 * @return the configured client with that key, or null if there is none
+	 */
+	public Client getClientForKeyHash(byte[] keyHash) {
+
+		String name = index.getClientNameForKeyHash(keyHash) ;
+		return name != null ? getClient(name) : null ;
+	}
+
 	public Client getDefaultClient() {
 		return defaultClient ;
 	}
-	
+
+	/**
+	 * Returns every configured client, by name. This loads every client, so should be avoided with large lists.
+	 *
+	 * @return every configured client, by name
+	 */
 	public HashMap<String, Client> getClientsByName() {
+
+		HashMap<String, Client> clients = new HashMap<>() ;
+		for (String name:getClientNames()) {
+			clients.put(name, getClient(name)) ;
+		}
 		return clients ;
 	}
-	
+
+	/**
+	 * @return the clients that have been looked up so far
+	 */
+	Collection<Client> getLoadedClients() {
+		return loadedClients.values() ;
+	}
+
 	public ClientList() {
-		clients = new HashMap<>() ;
-		
-		defaultClient = new Client("anonymous", null, -1, -1, -1) ;
-	}
-
-	public ClientList(File listFile) throws ParserConfigurationException, IOException, ClassNotFoundException, InstantiationException, IllegalAccessException, SAXException {
-		
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		Document doc = db.parse(listFile);
-		doc.getDocumentElement().normalize();
-		
-		initFromXml(doc.getDocumentElement()) ;
-		
-	}
-	
-    @SuppressWarnings("empty-statement")
-	private void initFromXml(Element xml) throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
-		
-		clients = new HashMap<>() ;
-				
-		NodeList children = xml.getChildNodes() ;
-		
-		for (int i=0 ; i<children.getLength() ; i++) {
-			
-			Node xmlChild = children.item(i) ;
-			
-			if (xmlChild.getNodeType() == Node.ELEMENT_NODE) {
-				
-				Element xmlParam = (Element)xmlChild ;
-				
-				String paramName = xmlParam.getNodeName() ;
-				//String paramValue = getParamValue(xmlParam) ;
-				
-				switch(resolveParamName(xmlParam.getNodeName())) {
-				
-				
-				case client:
-
-					String clientName = null ;
-					if (xmlParam.hasAttribute("name")) {
-                                clientName = xmlParam.getAttribute("name") ;
-                            }
-					
-					String password = null ;
-					if (xmlParam.hasAttribute("password")) {
-                                password = xmlParam.getAttribute("password") ;
-                            }
-					
-					int minLimit = -1 ;
-					if (xmlParam.hasAttribute("minLimit")) {
-                                minLimit = Integer.parseInt(xmlParam.getAttribute("minLimit"));
-                            }
-					
-					int hourLimit = -1 ;
-					if (xmlParam.hasAttribute("hourLimit")) {
-                                hourLimit = Integer.parseInt(xmlParam.getAttribute("hourLimit"));
-                            }
-					
-					int dayLimit = -1 ;
-					if (xmlParam.hasAttribute("dayLimit")) {
-                                dayLimit = Integer.parseInt(xmlParam.getAttribute("dayLimit"));
-                            }	
-					
-					if (clientName == null) {
-                                defaultClient = new Client("anonymous", password, minLimit, hourLimit, dayLimit) ;
-                            }
-					else {
-                                this.clients.put(clientName, new Client(clientName, password, minLimit, hourLimit, dayLimit)) ;
-                            }	
-					break ;
-				case authentication:
-					cookieUserName = xmlParam.getAttribute("nameCookie") ;
-					cookiePassword = xmlParam.getAttribute("passwordCookie") ;
-					break ;
-				default:
-					_logger.warn("Ignoring unknown parameter: '" + paramName + "'") ;
-				} ;
+
+		ClientIndex.Builder builder = new ClientIndex.Builder() ;
+		builder.setDefaultClient(null, -1, -1, -1, Client.Algorithm.fixedWindow, 0, 0) ;
+
+		try {
+			init(ClientIndex.wrap(builder.build(new byte[32]))) ;
+		} catch (IOException e) {
+			//an empty index is only ever written to memory
+			throw new IllegalStateException(e) ;
+		}
+	}
+
+	public ClientList(File listFile) throws IOException, XMLStreamException {
+		this(listFile, false) ;
+	}
+
+	/**
+	 * Loads the clients in the given file
+	 *
+	 * @param listFile the client file
+	 * @param indexed true if the index of the client file should be kept next to it, and used instead of the file when it is up to date
+	 * @throws IOException if the client file cannot be read
+	 * @throws XMLStreamException if the client file is not valid xml
+	 */
+	public ClientList(File listFile, boolean indexed) throws IOException, XMLStreamException {
+
+		//hashed before parsing, so an index of a file changed while it is parsed is rebuilt next time
+		byte[] hash = indexed ? hashContent(listFile) : new byte[32] ;
+
+		File indexFile = new File(listFile.getPath() + ".idx") ;
+		ClientIndex loadedIndex = null ;
+
+		if (indexed) {
+			try {
+				loadedIndex = ClientIndex.open(indexFile, hash) ;
+			} catch (IOException e) {
+				_logger.warn("Could not read client index '" + indexFile + "'", e) ;
 			}
-						
-			//if there is no default client, make one with no access limits
-			if (defaultClient == null) {
-                        defaultClient = new Client("anonymous", null, 0,0,0) ;
-                    }	
-		}
-	}
-	
-	/*
-	private String getParamValue(Element xmlParam) {
-		
-		Node nodeContent = xmlParam.getChildNodes().item(0) ;
-		
-		if (nodeContent == null)
-			return null ;
-		
-		if (nodeContent.getNodeType() != Node.TEXT_NODE)
-			return null ;
-		
-		String content = nodeContent.getTextContent().trim() ;
-		
-		if (content.length() == 0)
+		}
+
+		if (loadedIndex == null) {
+
+			byte[] bytes = parse(listFile).build(hash) ;
+
+			if (indexed) {
+				try {
+					ClientIndex.write(bytes, indexFile) ;
+				} catch (IOException e) {
+					_logger.warn("Could not write client index '" + indexFile + "'", e) ;
+				}
+			}
+
+			loadedIndex = ClientIndex.wrap(bytes) ;
+		}
+
+		init(loadedIndex) ;
+	}
+
+	private void init(ClientIndex index) {
+
+		this.index = index ;
+
+		String[] settings = index.getSettings() ;
+		cookieUserName = settings[1] ;
+		cookiePassword = settings[2] ;
+		keyHeader = settings[3] ;
+		keyParam = settings[4] ;
+
+		defaultClient = index.createDefaultClient() ;
+	}
+
+	/**
+	 * @return the SHA-256 hash of the content of the given file
+	 */
+	private static byte[] hashContent(File file) throws IOException {
+
+		MessageDigest digest ;
+		try {
+			digest = MessageDigest.getInstance("SHA-256") ;
+		} catch (NoSuchAlgorithmException e) {
+			//every java platform is required to support SHA-256
+			throw new IllegalStateException(e) ;
+		}
+
+		try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+			byte[] buffer = new byte[65536] ;
+			while (in.read(buffer) >= 0) {
+				//the digest is updated as the file is read
+			}
+		}
+
+		return digest.digest() ;
+	}
+
+	private ClientIndex.Builder parse(File listFile) throws IOException, XMLStreamException {
+
+		ClientIndex.Builder builder = new ClientIndex.Builder() ;
+
+		XMLInputFactory factory = XMLInputFactory.newInstance() ;
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false) ;
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false) ;
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(listFile))) {
+
+			XMLStreamReader reader = factory.createXMLStreamReader(in) ;
+
+			try {
+				//parameters are the children of the root element; anything deeper is ignored
+				int depth = 0 ;
+
+				while (reader.hasNext()) {
+
+					switch (reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						depth++ ;
+						if (depth == 2) {
+							readParam(reader, builder) ;
+						}
+						break ;
+					case XMLStreamConstants.END_ELEMENT:
+						depth-- ;
+						break ;
+					default:
+						break ;
+					}
+				}
+			} finally {
+				reader.close() ;
+			}
+		}
+
+		return builder ;
+	}
+
+	private void readParam(XMLStreamReader reader, ClientIndex.Builder builder) {
+
+		String paramName = reader.getLocalName() ;
+
+		switch(resolveParamName(paramName)) {
+
+		case client:
+
+			String clientName = reader.getAttributeValue(null, "name") ;
+			String password = reader.getAttributeValue(null, "password") ;
+
+			int minLimit = getIntAttribute(reader, "minLimit", -1) ;
+			int hourLimit = getIntAttribute(reader, "hourLimit", -1) ;
+			int dayLimit = getIntAttribute(reader, "dayLimit", -1) ;
+
+			Client.Algorithm algorithm = Client.Algorithm.fixedWindow ;
+			String algorithmAttr = reader.getAttributeValue(null, "algorithm") ;
+			if (algorithmAttr != null) {
+				algorithm = Client.Algorithm.valueOf(algorithmAttr.trim()) ;
+			}
+
+			int burst = getIntAttribute(reader, "burst", 0) ;
+
+			double refillRate = 0 ;
+			String refillRateAttr = reader.getAttributeValue(null, "refillRate") ;
+			if (refillRateAttr != null) {
+				refillRate = Double.parseDouble(refillRateAttr) ;
+			}
+
+			if (clientName == null) {
+				builder.setDefaultClient(password, minLimit, hourLimit, dayLimit, algorithm, burst, refillRate) ;
+				break ;
+			}
+
+			//requests from any of these ranges share this client's limits
+			ArrayList<String> addresses = new ArrayList<>() ;
+			String addressesAttr = reader.getAttributeValue(null, "addresses") ;
+			if (addressesAttr != null) {
+				for (String range:addressesAttr.split(",")) {
+					range = range.trim() ;
+					if (range.isEmpty()) {
+						continue ;
+					}
+					if (CidrMap.isValidRange(range)) {
+						addresses.add(range) ;
+					} else {
+						_logger.warn("Ignoring invalid address range '" + range + "' for client '" + clientName + "'") ;
+					}
+				}
+			}
+
+			//keys are only ever stored hashed
+			byte[] keyHash = null ;
+			String keyHashAttr = reader.getAttributeValue(null, "keyHash") ;
+			if (keyHashAttr != null) {
+				keyHash = parseKeyHash(keyHashAttr.trim()) ;
+				if (keyHash == null) {
+					_logger.warn("Ignoring invalid key hash for client '" + clientName + "'") ;
+				}
+			}
+
+			builder.addClient(clientName, password, minLimit, hourLimit, dayLimit, algorithm, burst, refillRate, addresses, keyHash) ;
+			break ;
+		case authentication:
+			if (reader.getAttributeValue(null, "nameCookie") != null) {
+				builder.setCookies(reader.getAttributeValue(null, "nameCookie"), reader.getAttributeValue(null, "passwordCookie")) ;
+			}
+			if (reader.getAttributeValue(null, "keyHeader") != null) {
+				builder.setKeyHeader(reader.getAttributeValue(null, "keyHeader")) ;
+			}
+			if (reader.getAttributeValue(null, "keyParam") != null) {
+				builder.setKeyParam(reader.getAttributeValue(null, "keyParam")) ;
+			}
+			break ;
+		default:
+			_logger.warn("Ignoring unknown parameter: '" + paramName + "'") ;
+		}
+	}
+
+	private int getIntAttribute(XMLStreamReader reader, String name, int defaultValue) {
+
+		String value = reader.getAttributeValue(null, name) ;
+
+		if (value == null) {
+			return defaultValue ;
+		}
+
+		return Integer.parseInt(value) ;
+	}
+
+	/**
+	 * @return the bytes of the given SHA-256 hash, or null if it is not 64 hex digits
+	 */
+	private byte[] parseKeyHash(String hex) {
+
+		if (hex.length() != 64) {
 			return null ;
-		
-		return content ;
-	}*/
-		
+		}
+
+		byte[] hash = new byte[32] ;
+		for (int i=0 ; i<hash.length ; i++) {
+			int high = Character.digit(hex.charAt(i*2), 16) ;
+			int low = Character.digit(hex.charAt(i*2 + 1), 16) ;
+
+			if (high < 0 || low < 0) {
+				return null ;
+			}
+			hash[i] = (byte)((high << 4) | low) ;
+		}
+
+		return hash ;
+	}
+
 	private ParamName resolveParamName(String name) {
 		try {
 			return ParamName.valueOf(name.trim()) ;
@@ -167,5 +412,5 @@ public class ClientList {
 			return ParamName.unknown ;
 		}
 	}
-	
+
 }
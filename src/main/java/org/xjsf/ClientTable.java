@@ -0,0 +1,428 @@
+package org.xjsf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The clients known to the hub. Clients configured in the client list are
+ * pinned, and kept for as long as the hub is. Clients that are created
+ * automatically (one for each unknown remote address) are kept only while they
+ * are in use: they are evicted once they have been idle for longer than the
+ * idle timeout, and the least recently used are evicted whenever the table
+ * holds more than its maximum number of clients.
+ * <p>
+ * Eviction is done by whichever thread happens to need it, so there are no
+ * background threads to manage. An evicted client loses its usage, so the idle
+ * timeout should be at least as long as the longest period that limits are
+ * enforced over.
+ * <p>
+ * Clients can also be identified by api keys, which the client list only holds
+ * as hashes. Once a key has been verified, it is cached along with its client
+ * (up to a fixed number of keys), so that later requests with the same key
+ * cost a single lookup.
+ * <p>
+ * Tables are replaced, rather than changed, when the client list is reloaded.
+ * See {@link #reload(ClientList)}.
+ */
+public class ClientTable {
+
+    /**
+     * The maximum number of automatically created clients kept unless told
+     * otherwise
+     */
+    public static final int DEFAULT_MAX_CLIENTS = 10000;
+
+    /**
+     * The number of milliseconds automatically created clients are kept
+     * while idle, unless told otherwise. This is a day, the longest period
+     * limits are enforced over, so a client cannot shed its daily usage by
+     * pausing.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 24 * 60 * 60 * 1000L;
+
+    /**
+     * The maximum number of verified api keys that are cached
+     */
+    public static final int MAX_CACHED_KEYS = 4096;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ClientList clientList;
+    private final ConcurrentHashMap<String, Client> clientsByVerifiedKey = new ConcurrentHashMap<>();
+    private final Client defaultClient;
+    private final ConcurrentHashMap<String, Client> createdClients = new ConcurrentHashMap<>();
+    private final int maxClients;
+    private final long idleTimeout;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile long lastSweep = System.currentTimeMillis();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong idleEvictionCount = new AtomicLong();
+    private final AtomicLong capacityEvictionCount = new AtomicLong();
+    private volatile ClientTable replacement;
+
+    /**
+     * Initialises a new ClientTable
+     *
+     * @param clientList the configured clients, which are pinned
+     * @param maxClients the maximum number of automatically created clients to
+     * keep
+     * @param idleTimeout the number of milliseconds automatically created
+     * clients are kept while idle
+     */
+    public ClientTable(ClientList clientList, int maxClients, long idleTimeout) {
+        this.clientList = clientList;
+        this.defaultClient = clientList.getDefaultClient();
+        this.maxClients = Math.max(1, maxClients);
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns a new table for the given client list, to replace this one.
+     * Clients that have been used and are in both lists, and all automatically
+     * created clients, keep their usage in the new table, even if their limits
+     * have changed.
+     * Verified api keys are not kept, since they may have been revoked.
+     * <p>
+     * From then on, this table hands out clients from the new one, so that
+     * clients created by requests that still hold this table (including any
+     * created while it is being reloaded) are not lost.
+     *
+     * @param newClientList the reloaded client list
+     * @return a new table for the reloaded list
+     */
+    public ClientTable reload(ClientList newClientList) {
+
+        ClientTable table = new ClientTable(newClientList, maxClients, idleTimeout);
+
+        for (Client previous : clientList.getLoadedClients()) {
+            Client client = newClientList.getClient(previous.getName());
+            if (client != null) {
+                client.inheritUsage(previous);
+            }
+        }
+
+        //set before copying, so clients created here from now on are also adopted by the new table
+        replacement = table;
+
+        for (Map.Entry<String, Client> e : createdClients.entrySet()) {
+            table.adopt(e.getKey(), e.getValue());
+        }
+
+        table.createdCount.addAndGet(createdCount.get());
+        table.idleEvictionCount.addAndGet(idleEvictionCount.get());
+        table.capacityEvictionCount.addAndGet(capacityEvictionCount.get());
+
+        return table;
+    }
+
+    /**
+     * Takes on an automatically created client of the table this one
+     * replaces, along with its usage, unless this table already has a client
+     * with the same name
+     */
+    private void adopt(String name, Client previous) {
+
+        if (!createdClients.containsKey(name)) {
+            Client client = new Client(name, null, defaultClient);
+            client.inheritUsage(previous);
+            createdClients.putIfAbsent(name, client);
+        }
+    }
+
+    /**
+     * Describes how the configured clients of the given table differ from
+     * those of this one
+     *
+     * @param previous the table this one replaces
+     * @return the number of clients added and removed, and the number of
+     * clients in use whose limits changed, for logging
+     */
+    public String describeChanges(ClientTable previous) {
+
+        HashSet<String> previousNames = new HashSet<>(Arrays.asList(previous.clientList.getClientNames()));
+
+        int added = 0;
+        for (String name : clientList.getClientNames()) {
+            if (!previousNames.remove(name)) {
+                added++;
+            }
+        }
+        int removed = previousNames.size();
+
+        int changed = 0;
+        for (Client previousClient : previous.clientList.getLoadedClients()) {
+            Client client = clientList.getClient(previousClient.getName());
+            if (client != null && !client.hasSameSettings(previousClient)) {
+                changed++;
+            }
+        }
+
+        boolean defaultChanged = !defaultClient.hasSameSettings(previous.defaultClient);
+
+        return added + " added, " + removed + " removed, " + changed + " changed"
+                + (defaultChanged ? ", default limits changed" : "");
+    }
+
+    /**
+     * @return the client list this table was made from
+     */
+    public ClientList getClientList() {
+        return clientList;
+    }
+
+    /**
+     * Returns the configured client with the given name
+     *
+     * @param name the name of the client
+     * @return the configured client, or null if there is none with that name
+     */
+    public Client getConfiguredClient(String name) {
+        return clientList.getClient(name);
+    }
+
+    /**
+     * @return true if any configured clients are identified by api keys
+     */
+    public boolean hasKeys() {
+        return clientList.hasKeys();
+    }
+
+    /**
+     * Returns the configured client with the given api key
+     *
+     * @param key the api key, as given by the client
+     * @return the client with the given key, or null if the key is not valid
+     */
+    public Client getClientForKey(String key) {
+
+        Client client = clientsByVerifiedKey.get(key);
+        if (client != null) {
+            return client;
+        }
+
+        client = clientList.getClientForKeyHash(digestKey(key));
+        if (client == null) {
+            //invalid keys are not cached, so they cannot crowd out valid ones
+            return null;
+        }
+
+        if (clientsByVerifiedKey.size() >= MAX_CACHED_KEYS) {
+            Iterator<String> i = clientsByVerifiedKey.keySet().iterator();
+            if (i.hasNext()) {
+                i.next();
+                i.remove();
+            }
+        }
+        clientsByVerifiedKey.put(key, client);
+
+        return client;
+    }
+
+    /**
+     * Returns the hash that the client list holds for the given api key
+     *
+     * @param key an api key
+     * @return the SHA-256 hash of the key's UTF-8 bytes, in lower case hex
+     */
+    public static String hashKey(String key) {
+
+        byte[] hash = digestKey(key);
+
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    private static byte[] digestKey(String key) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            //every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the client that requests from the given address are charged to:
+     * the configured client for the longest address range containing it, or
+     * else the client named after the address itself
+     *
+     * @param address the address requests come from
+     * @return the client for the given address
+     */
+    public Client getClientForAddress(String address) {
+
+        Client client = clientList.getClientForAddress(address);
+        if (client != null) {
+            return client;
+        }
+
+        return getClient(address);
+    }
+
+    /**
+     * Returns the client with the given name, creating one with the same
+     * limits as the default client if there is none
+     *
+     * @param name the name of the client
+     * @return the client with the given name
+     */
+    public Client getClient(String name) {
+
+        ClientTable replacement = this.replacement;
+        if (replacement != null) {
+            return getReplacementClient(replacement, name);
+        }
+
+        long now = System.currentTimeMillis();
+
+        Client client = clientList.getClient(name);
+        if (client != null) {
+            return client;
+        }
+
+        client = createdClients.get(name);
+
+        if (client == null) {
+
+            if (createdClients.size() >= maxClients || now - lastSweep > idleTimeout / 2) {
+                evict(now);
+            }
+
+            Client newClient = new Client(name, null, defaultClient);
+            newClient.touch(now);
+            client = createdClients.putIfAbsent(name, newClient);
+
+            if (client == null) {
+                client = newClient;
+                createdCount.incrementAndGet();
+
+                //the table may have been reloaded while the client was being created
+                replacement = this.replacement;
+                if (replacement != null) {
+                    return getReplacementClient(replacement, name);
+                }
+            }
+        }
+
+        client.touch(now);
+        return client;
+    }
+
+    /**
+     * Returns the client with the given name from the table that replaced
+     * this one, which adopts this table's client first if need be
+     */
+    private Client getReplacementClient(ClientTable replacement, String name) {
+
+        Client previous = createdClients.get(name);
+        if (previous != null) {
+            replacement.adopt(name, previous);
+        }
+
+        return replacement.getClient(name);
+    }
+
+    /**
+     * @return the number of clients currently held, including configured ones
+     */
+    public int getSize() {
+        return clientList.getClientCount() + createdClients.size();
+    }
+
+    /**
+     * @return the number of configured clients, which are never evicted
+     */
+    public int getConfiguredCount() {
+        return clientList.getClientCount();
+    }
+
+    /**
+     * @return the number of clients that have been created automatically
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return the number of clients that have been evicted for being idle
+     */
+    public long getIdleEvictionCount() {
+        return idleEvictionCount.get();
+    }
+
+    /**
+     * @return the number of clients that have been evicted to keep the table
+     * within its maximum size
+     */
+    public long getCapacityEvictionCount() {
+        return capacityEvictionCount.get();
+    }
+
+    /**
+     * Evicts idle clients and, if the table is still full, enough of the
+     * least recently used to bring it down to nine tenths of its maximum size.
+     * Eviction is skipped if another thread is already doing it.
+     */
+    private void evict(long now) {
+
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            lastSweep = now;
+
+            Iterator<Client> i = createdClients.values().iterator();
+            while (i.hasNext()) {
+                if (now - i.next().getLastUsed() > idleTimeout) {
+                    i.remove();
+                    idleEvictionCount.incrementAndGet();
+                }
+            }
+
+            int excess = createdClients.size() - (maxClients - maxClients / 10);
+            if (createdClients.size() < maxClients || excess <= 0) {
+                return;
+            }
+
+            //find the time of last use that the excess clients fall below
+            long[] lastUsed = new long[createdClients.size()];
+            int count = 0;
+            for (Client client : createdClients.values()) {
+                if (count == lastUsed.length) {
+                    break;
+                }
+                lastUsed[count++] = client.getLastUsed();
+            }
+            if (count == 0) {
+                return;
+            }
+            Arrays.sort(lastUsed, 0, count);
+            long threshold = lastUsed[Math.min(excess, count) - 1];
+
+            i = createdClients.values().iterator();
+            while (i.hasNext() && excess > 0) {
+                if (i.next().getLastUsed() <= threshold) {
+                    i.remove();
+                    excess--;
+                    capacityEvictionCount.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
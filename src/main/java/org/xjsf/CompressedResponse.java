@@ -0,0 +1,256 @@
+package org.xjsf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response that compresses whatever is written to it with gzip or deflate.
+ * Output is held back until it exceeds a threshold, so small responses are
+ * sent uncompressed. Once the threshold is passed, output is compressed as it
+ * is written, and each flush pushes everything compressed so far to the
+ * client.
+ * <p>
+ * {@link #finish()} must be called once the response is complete.
+ */
+public class CompressedResponse extends HttpServletResponseWrapper {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private final String encoding;
+    private final int threshold;
+    private final int level;
+    private CompressingStream stream;
+    private PrintWriter writer;
+
+    /**
+     * Initialises a new compressed response
+     *
+     * @param response the response to compress
+     * @param encoding the content encoding to use; either {@link #GZIP} or
+     * {@link #DEFLATE}
+     * @param threshold the number of bytes a response must exceed before it is
+     * compressed
+     * @param level the compression level, from 0 to 9 (or -1 for the default)
+     */
+    public CompressedResponse(HttpServletResponse response, String encoding, int threshold, int level) {
+        super(response);
+        this.encoding = encoding;
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * Returns the content encoding the client prefers out of those supported,
+     * as specified in its <em>Accept-Encoding</em> header.
+     *
+     * @param request the request made by the client
+     * @return {@link #GZIP}, {@link #DEFLATE}, or null if the client accepts
+     * neither
+     */
+    public static String negotiateEncoding(HttpServletRequest request) {
+
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        float gzipQuality = -1;
+        float deflateQuality = -1;
+        float anyQuality = -1;
+
+        for (String coding : acceptEncoding.split(",")) {
+
+            String name = coding;
+            float quality = 1;
+
+            int paramIndex = coding.indexOf(';');
+            if (paramIndex >= 0) {
+                name = coding.substring(0, paramIndex);
+                String param = coding.substring(paramIndex + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            name = name.trim().toLowerCase();
+
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzipQuality = quality;
+            } else if (name.equals(DEFLATE)) {
+                deflateQuality = quality;
+            } else if (name.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+
+        if (gzipQuality < 0) {
+            gzipQuality = anyQuality;
+        }
+        if (deflateQuality < 0) {
+            deflateQuality = anyQuality;
+        }
+
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return GZIP;
+        }
+        if (deflateQuality > 0) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * @return the content encoding this response is compressed with
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+
+        if (stream == null) {
+            stream = new CompressingStream();
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            stream = new CompressingStream();
+            writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        //the length of the compressed response is not known until it is finished
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        } else if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Writes out anything that is still held back or buffered by the
+     * compressor. Nothing may be written to the response after this.
+     *
+     * @throws IOException if the response could not be written
+     */
+    public void finish() throws IOException {
+
+        if (writer != null) {
+            writer.flush();
+        }
+
+        if (stream != null) {
+            stream.finish();
+        }
+    }
+
+    private class CompressingStream extends ServletOutputStream {
+
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private DeflaterOutputStream compressor;
+        private Deflater deflater;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            if (compressor != null) {
+                compressor.write(b, off, len);
+                return;
+            }
+
+            pending.write(b, off, len);
+
+            if (pending.size() > threshold) {
+                startCompressing();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (compressor != null) {
+                compressor.flush();
+            }
+        }
+
+        private void startCompressing() throws IOException {
+
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            response.setHeader("Content-Encoding", encoding);
+
+            OutputStream out = response.getOutputStream();
+
+            if (encoding.equals(GZIP)) {
+                compressor = new GZIPOutputStream(out, 8192, true) {
+                    {
+                        def.setLevel(level);
+                        deflater = def;
+                    }
+                };
+            } else {
+                deflater = new Deflater(level);
+                compressor = new DeflaterOutputStream(out, deflater, 8192, true);
+            }
+
+            pending.writeTo(compressor);
+            pending = null;
+        }
+
+        private void finish() throws IOException {
+
+            if (compressor != null) {
+                compressor.finish();
+                compressor.flush();
+                deflater.end();
+                return;
+            }
+
+            if (pending != null) {
+                HttpServletResponse response = (HttpServletResponse) getResponse();
+                response.setContentLength(pending.size());
+                pending.writeTo(response.getOutputStream());
+                pending = null;
+                response.getOutputStream().flush();
+            }
+        }
+    }
+}
@@ -6,9 +6,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
 import javax.servlet.http.HttpServletRequest;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.ElementList;
@@ -31,18 +31,33 @@ public class ListServicesService extends Service {
         return s1.compareTo(s2);
     };
 
+    private volatile Listing listing;
+
     public ListServicesService() {
         super("meta", "Lists available services",
                 "<p>This service lists the different services that are available.</p>", false);
     }
 
     @Override
-    public Message buildWrappedResponse(HttpServletRequest request) throws Exception {
+    public Service.Message buildWrappedResponse(HttpServletRequest request) throws Exception {
+
+        ServiceHub.Registry registry = getHub().getRegistry();
+
+        Listing l = listing;
+        if (l == null || l.version != registry.getVersion()) {
+            l = new Listing(registry.getVersion(), new ResponseTemplate(this, getMessageFactory(registry)));
+            listing = l;
+        }
+
+        return l.template.createMessage(request);
+    }
+
+    private ResponseTemplate.MessageFactory getMessageFactory(ServiceHub.Registry registry) {
 
         TreeMap<String, ServiceGroup> serviceGroupsByName = new TreeMap<>(groupNameComparator);
-    //    getHub().getServiceNames().stream().collect(Collectors.groupingBy(null, request))
-        for (String serviceName : getHub().getServiceNames()) {
-            Service service = getHub().getService(serviceName);
+        for (Map.Entry<String, Service> e : registry.getServices().entrySet()) {
+            String serviceName = e.getKey();
+            Service service = e.getValue();
             String groupName = service.getGroupName();
             ServiceGroup sg = serviceGroupsByName.get(groupName);
 
@@ -57,17 +72,29 @@ public class ListServicesService extends Service {
         ArrayList<ServiceGroup> serviceGroups = new ArrayList<>();
         serviceGroups.addAll(serviceGroupsByName.values());
 
-        return new Message(request, serviceGroups);
+        return (String serviceName, Map<String, String> requestEcho, boolean includeBody)
+                -> new Message(serviceName, requestEcho, includeBody ? serviceGroups : null);
+    }
+
+    private static class Listing {
+
+        private final long version;
+        private final ResponseTemplate template;
+
+        private Listing(long version, ResponseTemplate template) {
+            this.version = version;
+            this.template = template;
+        }
     }
 
     public static class Message extends Service.Message {
 
         @Expose
-        @ElementList
+        @ElementList(required = false)
         private final ArrayList<ServiceGroup> serviceGroups;
 
-        private Message(HttpServletRequest request, ArrayList<ServiceGroup> serviceGroups) {
-            super(request);
+        private Message(String serviceName, Map<String, String> requestEcho, ArrayList<ServiceGroup> serviceGroups) {
+            super(serviceName, requestEcho);
             this.serviceGroups = serviceGroups;
         }
 
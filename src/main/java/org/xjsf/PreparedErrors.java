@@ -0,0 +1,79 @@
+package org.xjsf;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.xjsf.Service.ResponseFormat;
+import org.xjsf.Service.TracePolicy;
+import org.xjsf.UtilityMessages.ErrorMessage;
+
+/**
+ * Error responses that are sent often and never depend on the request (such
+ * as rejections of clients over their usage limits), serialized once per
+ * response format and then written as they are. Unlike other error messages,
+ * these do not echo the request, and are never pretty printed.
+ * <p>
+ * Bodies are kept for each distinct service name, trace policy and error
+ * message, up to a fixed number; errors beyond that are still serialized, but
+ * are not kept.
+ */
+final class PreparedErrors {
+
+    /**
+     * The maximum number of distinct errors whose bodies are kept
+     */
+    static final int MAX_ERRORS = 256;
+
+    private final ServiceHub hub;
+    private final ConcurrentHashMap<String, EnumMap<ResponseFormat, byte[]>> bodiesByError = new ConcurrentHashMap<>();
+
+    PreparedErrors(ServiceHub hub) {
+        this.hub = hub;
+    }
+
+    /**
+     * Returns the serialized body of an error message for the given error
+     *
+     * @param serviceName the name of the service responding
+     * @param error the error to report, which must have a message
+     * @param tracePolicy how much of the error's trace to include
+     * @param responseFormat the format to serialize the message in
+     * @return the serialized message, which must not be modified; in
+     * {@link ResponseFormat#DIRECT} format, just the error's message as text
+     * @throws Exception if the message could not be serialized
+     */
+    byte[] getBody(String serviceName, Exception error, TracePolicy tracePolicy, ResponseFormat responseFormat) throws Exception {
+
+        String key = tracePolicy.name() + '\u0000' + serviceName + '\u0000' + error.getMessage();
+
+        EnumMap<ResponseFormat, byte[]> bodies = bodiesByError.get(key);
+        if (bodies == null) {
+            bodies = render(serviceName, error, tracePolicy);
+            if (bodiesByError.size() < MAX_ERRORS) {
+                bodiesByError.putIfAbsent(key, bodies);
+            }
+        }
+
+        return bodies.get(responseFormat);
+    }
+
+    private EnumMap<ResponseFormat, byte[]> render(String serviceName, Exception error, TracePolicy tracePolicy) throws Exception {
+
+        ErrorMessage msg = new ErrorMessage(serviceName, null, error.getMessage(), ErrorMessage.getTrace(error, tracePolicy));
+
+        EnumMap<ResponseFormat, byte[]> bodies = new EnumMap<>(ResponseFormat.class);
+
+        for (ResponseFormat responseFormat : ResponseFormat.values()) {
+            if (responseFormat == ResponseFormat.DIRECT) {
+                bodies.put(responseFormat, error.getMessage().getBytes(StandardCharsets.UTF_8));
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                hub.serialize(msg, responseFormat, out);
+                bodies.put(responseFormat, out.toByteArray());
+            }
+        }
+
+        return bodies;
+    }
+}
@@ -0,0 +1,153 @@
+package org.xjsf;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+import org.simpleframework.xml.strategy.TreeStrategy;
+import org.simpleframework.xml.strategy.Type;
+import org.simpleframework.xml.stream.NodeMap;
+
+/**
+ * The parameters of a request, as they are echoed back in responses. This is
+ * a read-only view of the request's own parameters (the first value of each),
+ * so nothing is copied unless the echo is actually serialized. A message that
+ * holds an echo must therefore not be used once its request is complete.
+ */
+class RequestEcho extends AbstractMap<String, String> {
+
+    private static final String DISABLED_ATTRIBUTE = RequestEcho.class.getName() + ".disabled";
+    private static final String HIDDEN_ATTRIBUTE = RequestEcho.class.getName() + ".hidden";
+    private final HttpServletRequest request;
+    private final String hidden;
+
+    private RequestEcho(HttpServletRequest request, String hidden) {
+        this.request = request;
+        this.hidden = hidden;
+    }
+
+    /**
+     * Returns the echo of the given request
+     *
+     * @param request the request made to the service
+     * @return the echo of the request, or null if it should not be echoed
+     */
+    static Map<String, String> of(HttpServletRequest request) {
+
+        if (request.getAttribute(DISABLED_ATTRIBUTE) != null) {
+            return null;
+        }
+
+        return new RequestEcho(request, (String) request.getAttribute(HIDDEN_ATTRIBUTE));
+    }
+
+    /**
+     * Stops the given request from being echoed back in any messages made
+     * from it
+     *
+     * @param request the request made to the service
+     */
+    static void disable(HttpServletRequest request) {
+        request.setAttribute(DISABLED_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    /**
+     * Stops the given parameter from being echoed back in any messages made
+     * from the given request
+     *
+     * @param request the request made to the service
+     * @param name the name of the parameter
+     */
+    static void hide(HttpServletRequest request, String name) {
+        request.setAttribute(HIDDEN_ATTRIBUTE, name);
+    }
+
+    @Override
+    public String get(Object key) {
+        return key instanceof String && !key.equals(hidden) ? request.getParameter((String) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<Map.Entry<String, String>> entrySet() {
+
+        final Map<String, String[]> params = request.getParameterMap();
+        final boolean hiding = hidden != null && params.containsKey(hidden);
+
+        return new AbstractSet<Map.Entry<String, String>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+
+                final Iterator<Map.Entry<String, String[]>> i = params.entrySet().iterator();
+
+                return new Iterator<Map.Entry<String, String>>() {
+
+                    private Map.Entry<String, String[]> next = advance();
+
+                    private Map.Entry<String, String[]> advance() {
+                        while (i.hasNext()) {
+                            Map.Entry<String, String[]> e = i.next();
+                            if (!hiding || !e.getKey().equals(hidden)) {
+                                return e;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String[]> e = next;
+                        next = advance();
+                        String[] values = e.getValue();
+                        return new SimpleImmutableEntry<>(e.getKey(), values != null && values.length > 0 ? values[0] : null);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return hiding ? params.size() - 1 : params.size();
+            }
+        };
+    }
+
+    /**
+     * Serializes echoes as if they were ordinary maps, rather than labelling
+     * them with their class
+     */
+    static class XmlStrategy extends TreeStrategy {
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public boolean write(Type type, Object value, NodeMap node, Map map) {
+
+            if (value instanceof RequestEcho) {
+                return false;
+            }
+
+            return super.write(type, value, node, map);
+        }
+    }
+}
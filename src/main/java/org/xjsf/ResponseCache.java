@@ -0,0 +1,201 @@
+package org.xjsf;
+
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import org.xjsf.Service.ResponseFormat;
+
+/**
+ * A bounded cache of serialized responses, for services whose responses depend
+ * only on the parameters they are given. Entries are keyed by service name,
+ * response format and the full (sorted) set of request parameters, and are
+ * evicted when they expire or when they are the least recently used entry in a
+ * full cache.
+ */
+public class ResponseCache {
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final LinkedHashMap<String, CachedResponse> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initialises a new response cache
+     *
+     * @param maxEntries the maximum number of responses to hold
+     * @param timeToLive the number of milliseconds a response remains valid
+     * for, or 0 if responses never expire
+     */
+    public ResponseCache(int maxEntries, long timeToLive) {
+
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.entries = new BoundedMap(maxEntries, evictions);
+    }
+
+    /**
+     * Returns the key under which the response to the given request would be
+     * cached
+     *
+     * @param request the request made to the service
+     * @param responseFormat the format the response will be serialized in
+     * @return the key identifying the response to this request
+     */
+    public String getKey(HttpServletRequest request, ResponseFormat responseFormat) {
+        return getCanonicalKey(request, responseFormat);
+    }
+
+    static String getCanonicalKey(HttpServletRequest request, ResponseFormat responseFormat) {
+
+        TreeSet<String> paramNames = new TreeSet<>();
+        for (@SuppressWarnings("unchecked") Enumeration<String> e = request.getParameterNames(); e.hasMoreElements();) {
+            paramNames.add(e.nextElement());
+        }
+
+        StringBuilder key = new StringBuilder();
+        key.append(request.getServletPath());
+        key.append('\u0000');
+        key.append(responseFormat.name());
+
+        for (String paramName : paramNames) {
+            key.append('\u0000');
+            key.append(paramName);
+            for (String value : request.getParameterValues(paramName)) {
+                key.append('\u0001');
+                key.append(value);
+            }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Returns the serialized response cached under the given key
+     *
+     * @param key the key returned by {@link #getKey}
+     * @return the serialized response, or null if there is no valid response
+     * cached for this key
+     */
+    public byte[] get(String key) {
+
+        CachedResponse entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+
+            if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.body;
+    }
+
+    /**
+     * Caches a serialized response
+     *
+     * @param key the key returned by {@link #getKey}
+     * @param body the serialized response
+     */
+    public void put(String key, byte[] body) {
+
+        long expiry = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE;
+
+        synchronized (entries) {
+            entries.put(key, new CachedResponse(body, expiry));
+        }
+    }
+
+    /**
+     * Discards all cached responses
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * A map in access order that drops its least recently used entry once it
+     * holds more than its maximum number of entries
+     */
+    private static class BoundedMap extends LinkedHashMap<String, CachedResponse> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private final AtomicLong evictions;
+
+        private BoundedMap(int maxEntries, AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class CachedResponse {
+
+        private final byte[] body;
+        private final long expiry;
+
+        private CachedResponse(byte[] body, long expiry) {
+            this.body = body;
+            this.expiry = expiry;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiry;
+        }
+    }
+}
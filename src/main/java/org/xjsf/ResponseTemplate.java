@@ -0,0 +1,231 @@
+package org.xjsf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.http.HttpServletRequest;
+import org.xjsf.Service.Message;
+import org.xjsf.Service.ResponseFormat;
+
+/**
+ * A message whose body never changes, rendered once per response format. Only
+ * the service name and request echo are serialized for each request, and the
+ * pre-rendered body is spliced into them.
+ * <p>
+ * The splice point is found by rendering the message with and without its
+ * body, and is checked against a sample request before it is used. Formats for
+ * which no reliable splice point can be found fall back to serializing the
+ * full message.
+ */
+public class ResponseTemplate {
+
+    /**
+     * Creates the messages a template is rendered from
+     */
+    public interface MessageFactory {
+
+        /**
+         * Creates a message
+         *
+         * @param serviceName the name of the service responding
+         * @param requestEcho the request parameters to echo back
+         * @param includeBody true if the message should contain its body,
+         * false if it should contain nothing but the echo
+         * @return the message
+         */
+        Message create(String serviceName, Map<String, String> requestEcho, boolean includeBody);
+    }
+
+    private static final String SAMPLE_SERVICE = "/sample";
+    private static final Splice UNSUPPORTED = new Splice(null, null, false);
+    private final Service service;
+    private final ServiceHub hub;
+    private final MessageFactory factory;
+    private final ConcurrentHashMap<ResponseFormat, Splice> splices = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ResponseFormat, Splice> prettySplices = new ConcurrentHashMap<>();
+
+    /**
+     * Initialises a new ResponseTemplate
+     *
+     * @param service the service whose responses the template renders
+     * @param factory creates the messages the template is rendered from
+     */
+    public ResponseTemplate(Service service, MessageFactory factory) {
+        this.service = service;
+        this.hub = service.getHub();
+        this.factory = factory;
+    }
+
+    /**
+     * Renders the template for the given formats in advance, so the first
+     * requests made in these formats do not have to. Templates are rendered
+     * as the service's responses are printed unless requests say otherwise.
+     *
+     * @param responseFormats the formats to render
+     */
+    public void prepare(ResponseFormat... responseFormats) {
+        for (ResponseFormat responseFormat : responseFormats) {
+            getSplice(responseFormat, service.prmPrettyPrint.getDefaultValue());
+        }
+    }
+
+    /**
+     * Returns a message that will be serialized by splicing this template into
+     * the echo of the given request
+     *
+     * @param request the request made to the service
+     * @return a message for the given request
+     */
+    public Message createMessage(HttpServletRequest request) {
+        return new TemplatedMessage(request, this);
+    }
+
+    void write(Message echo, ResponseFormat responseFormat, boolean prettyPrint, OutputStream out) throws Exception {
+
+        Splice splice = getSplice(responseFormat, prettyPrint);
+
+        if (splice != UNSUPPORTED) {
+            String rendered = render(factory.create(echo.getServiceName(), echo.getRequestEcho(), false), responseFormat, prettyPrint);
+            String spliced = splice.apply(rendered);
+
+            if (spliced != null) {
+                out.write(spliced.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+
+        hub.serialize(factory.create(echo.getServiceName(), echo.getRequestEcho(), true), responseFormat, prettyPrint, out);
+    }
+
+    private Splice getSplice(ResponseFormat responseFormat, boolean prettyPrint) {
+
+        ConcurrentHashMap<ResponseFormat, Splice> cache = prettyPrint ? prettySplices : splices;
+        Splice splice = cache.get(responseFormat);
+
+        if (splice == null) {
+            try {
+                splice = compile(responseFormat, prettyPrint);
+            } catch (Exception e) {
+                splice = UNSUPPORTED;
+            }
+            cache.put(responseFormat, splice);
+        }
+
+        return splice;
+    }
+
+    private Splice compile(ResponseFormat responseFormat, boolean prettyPrint) throws Exception {
+
+        //binary responses cannot be spliced as text
+        if (responseFormat == ResponseFormat.DIRECT || responseFormat == ResponseFormat.CBOR) {
+            return UNSUPPORTED;
+        }
+
+        Map<String, String> noEcho = Collections.emptyMap();
+        Map<String, String> sampleEcho = new HashMap<>();
+        sampleEcho.put("sample", "value");
+
+        String bare = render(factory.create(SAMPLE_SERVICE, noEcho, false), responseFormat, prettyPrint);
+        String full = render(factory.create(SAMPLE_SERVICE, noEcho, true), responseFormat, prettyPrint);
+
+        int prefixLength = 0;
+        while (prefixLength < bare.length() && prefixLength < full.length()
+                && bare.charAt(prefixLength) == full.charAt(prefixLength)) {
+            prefixLength++;
+        }
+
+        String suffix = bare.substring(prefixLength);
+        if (!full.endsWith(suffix) || full.length() - suffix.length() < prefixLength) {
+            return UNSUPPORTED;
+        }
+
+        String body = full.substring(prefixLength, full.length() - suffix.length());
+
+        String sampleBare = render(factory.create(SAMPLE_SERVICE, sampleEcho, false), responseFormat, prettyPrint);
+        String sampleFull = render(factory.create(SAMPLE_SERVICE, sampleEcho, true), responseFormat, prettyPrint);
+
+        //the body may be anchored to the start of the message (if it is serialized before the echo) or the end
+        Splice splice = new Splice(body, bare.substring(0, prefixLength), true);
+        if (sampleFull.equals(splice.apply(sampleBare))) {
+            return splice;
+        }
+
+        splice = new Splice(body, suffix, false);
+        if (sampleFull.equals(splice.apply(sampleBare))) {
+            return splice;
+        }
+
+        return UNSUPPORTED;
+    }
+
+    private String render(Message msg, ResponseFormat responseFormat, boolean prettyPrint) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        hub.serialize(msg, responseFormat, prettyPrint, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static class Splice {
+
+        private final String body;
+        private final String anchor;
+        private final boolean anchoredToStart;
+
+        private Splice(String body, String anchor, boolean anchoredToStart) {
+            this.body = body;
+            this.anchor = anchor;
+            this.anchoredToStart = anchoredToStart;
+        }
+
+        private String apply(String bare) {
+
+            int index;
+            if (anchoredToStart) {
+                if (!bare.startsWith(anchor)) {
+                    return null;
+                }
+                index = anchor.length();
+            } else {
+                if (!bare.endsWith(anchor)) {
+                    return null;
+                }
+                index = bare.length() - anchor.length();
+            }
+
+            StringBuilder sb = new StringBuilder(bare.length() + body.length());
+            sb.append(bare, 0, index);
+            sb.append(body);
+            sb.append(bare, index, bare.length());
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A message that carries nothing but the request echo, and is serialized
+     * through its template
+     */
+    static class TemplatedMessage extends Message {
+
+        private final ResponseTemplate template;
+
+        private TemplatedMessage(HttpServletRequest request, ResponseTemplate template) {
+            super(request);
+            this.template = template;
+        }
+
+        void write(ResponseFormat responseFormat, boolean prettyPrint, OutputStream out) throws Exception {
+            template.write(this, responseFormat, prettyPrint, out);
+        }
+
+        /**
+         * @return the full message this template renders for the same echo,
+         * for when the message is to be embedded rather than written
+         */
+        Message toMessage() {
+            return template.factory.create(getServiceName(), getRequestEcho(), true);
+        }
+    }
+}
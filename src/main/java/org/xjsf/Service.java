@@ -2,14 +2,26 @@ package org.xjsf;
 
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,6 +33,7 @@ import org.xjsf.param.BooleanParameter;
 import org.xjsf.param.EnumParameter;
 import org.xjsf.param.Parameter;
 import org.xjsf.param.ParameterGroup;
+import org.xjsf.param.ParameterGroupIndex;
 import org.xjsf.param.StringArrayParameter;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
@@ -32,8 +45,17 @@ public abstract class Service extends HttpServlet {
 
     public enum ResponseFormat {
 
-        XML, JSON, DIRECT
+        XML, JSON, DIRECT, NDJSON, CBOR
     };
+
+    /**
+     * How much of an exception's stack trace is included in error messages
+     */
+    public enum TracePolicy {
+
+        NONE, MESSAGE, FULL
+    };
+    private static final int SC_TOO_MANY_REQUESTS = 429;
     private ServiceHub hub;
     @Expose
     @Attribute
@@ -64,8 +86,19 @@ public abstract class Service extends HttpServlet {
     boolean supportsDirectResponse;
     protected EnumParameter<ResponseFormat> prmResponseFormat;
     protected BooleanParameter prmHelp;
+    protected BooleanParameter prmPrettyPrint;
+    protected BooleanParameter prmEcho;
     protected StringArrayParameter prmWikipedia;
     private DecimalFormat progressFormat = new DecimalFormat("#0%");
+    private ResponseCache responseCache;
+    private volatile ResponseTemplate helpTemplate;
+    private volatile TracePolicy tracePolicy;
+    private PreparedErrors preparedErrors;
+    private volatile ParameterGroupIndex parameterGroupIndex;
+    private int maxAge = -1;
+    private long asyncTimeout = 0;
+    private boolean virtualThreads;
+    private boolean requestEchoed = true;
 
     @SuppressWarnings("rawtypes")
     public Service(String groupName, String shortDescription, String detailsMarkup, boolean supportsDirectResponse) {
@@ -86,34 +119,104 @@ public abstract class Service extends HttpServlet {
         super.init(config);
 
         hub = ServiceHub.getInstance(config.getServletContext());
+        preparedErrors = new PreparedErrors(hub);
 
-        String[] descResponseFormat = {"in XML format", "in JSON format", "directly, without any additional information such as request parameters. This format will not be valid for some services."};
+        String[] descResponseFormat = {"in XML format", "in JSON format", "directly, without any additional information such as request parameters. This format will not be valid for some services.", "as newline delimited JSON, with one item per line for services that stream lists of items, and the whole response on a single line otherwise", "in CBOR format, a compact binary encoding of the JSON response"};
         prmResponseFormat = new EnumParameter<>("responseFormat", "the format in which the response should be returned", ResponseFormat.XML, ResponseFormat.values(), descResponseFormat);
         baseParameters.add(prmResponseFormat);
 
         prmHelp = new BooleanParameter("help", "If <b>true</b>, this will return a description of the service and the parameters available", false);
         baseParameters.add(prmHelp);
 
+        String prettyPrint = config.getInitParameter("prettyPrint");
+        boolean prettyPrintByDefault = prettyPrint != null ? Boolean.parseBoolean(prettyPrint) : hub.isPrettyPrintedByDefault();
+        prmPrettyPrint = new BooleanParameter("prettyPrint", "If <b>true</b>, JSON responses will be indented to make them easier to read", prettyPrintByDefault);
+        baseParameters.add(prmPrettyPrint);
+
+        String echo = config.getInitParameter("echo");
+        boolean echoByDefault = echo != null ? Boolean.parseBoolean(echo) : hub.isEchoedByDefault();
+        prmEcho = new BooleanParameter("echo", "If <b>false</b>, the request parameters will not be echoed back in the response", echoByDefault);
+        baseParameters.add(prmEcho);
+
+        String executionMode = config.getInitParameter("executionMode");
+        virtualThreads = executionMode != null ? "virtual".equalsIgnoreCase(executionMode) : hub.isVirtualThreadsByDefault();
+
+        String tracePolicyParam = config.getInitParameter("tracePolicy");
+        tracePolicy = tracePolicyParam != null ? TracePolicy.valueOf(tracePolicyParam.toUpperCase()) : hub.getDefaultTracePolicy();
+
         hub.registerService(this);
+
+        getHelpTemplate().prepare(ResponseFormat.XML, ResponseFormat.JSON, ResponseFormat.NDJSON);
+        getParameterGroupIndex();
     }
 
     @SuppressWarnings("rawtypes")
     public void addBaseParameter(Parameter param) {
         this.baseParameters.add(param);
+        helpTemplate = null;
     }
 
     public void addParamGroup(ParameterGroup group) {
         this.parameterGroups.add(group);
+        helpTemplate = null;
+        parameterGroupIndex = null;
     }
 
     public void addExample(Example example) {
         this.examples.add(example);
+        helpTemplate = null;
     }
 
     public ServiceHub getHub() {
         return hub;
     }
 
+    /**
+     * Caches serialized responses of this service. Only use this for services
+     * whose responses depend on nothing but their request parameters.
+     *
+     * @param responseCache the cache to use, or null to disable caching
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Declares that responses of this service may be cached by clients. Each
+     * response is given a strong ETag, and requests whose If-None-Match header
+     * matches it are answered with 304 Not Modified. Compressed responses are
+     * different representations, so their ETags are suffixed with the content
+     * encoding (e.g. <em>"&hellip;-gzip"</em>).
+     *
+     * @param maxAge the number of seconds clients may use a response for
+     * without revalidating it
+     */
+    public void setCacheable(int maxAge) {
+        this.maxAge = Math.max(0, maxAge);
+    }
+
+    public boolean isCacheable() {
+        return maxAge >= 0;
+    }
+
+    /**
+     * Returns a token that changes whenever the responses of this cacheable
+     * service might change (e.g. the version of the data it serves). If this
+     * is available, ETags are derived from it and the request, so responses
+     * that have not been modified are never built. Otherwise ETags are derived
+     * from the serialized response.
+     *
+     * @param request the request made to the service
+     * @return a version token, or null if none is available
+     */
+    public String getVersionToken(HttpServletRequest request) {
+        return null;
+    }
+
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
         doGet(request, response);
@@ -122,8 +225,31 @@ public abstract class Service extends HttpServlet {
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
 
-        ResponseFormat responseFormat = prmResponseFormat.getValue(request);
-        boolean requestingHelp = prmHelp.getValue(request);
+        CompressedResponse compressedResponse = getHub().compress(request, response);
+
+        boolean finished = true;
+        try {
+            finished = respond(request, compressedResponse != null ? compressedResponse : response);
+        } finally {
+            if (finished && compressedResponse != null) {
+                compressedResponse.finish();
+            }
+        }
+    }
+
+    /**
+     * Responds to the given request
+     *
+     * @return true if the response is complete, or false if it will be
+     * completed asynchronously
+     */
+    private boolean respond(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+
+        ResponseFormat responseFormat = prmResponseFormat.getMemoizedValue(request);
+        boolean requestingHelp = prmHelp.getMemoizedValue(request);
+        boolean prettyPrint = prmPrettyPrint.getMemoizedValue(request);
+
+        prepareEcho(request);
 
         response.setCharacterEncoding("UTF8");
         response.setHeader("Access-Control-Allow-Origin", "*");
@@ -139,33 +265,83 @@ public abstract class Service extends HttpServlet {
             case JSON:
                 response.setContentType("application/json");
                 break;
+            case NDJSON:
+                response.setContentType("application/x-ndjson");
+                break;
+            case CBOR:
+                response.setContentType("application/cbor");
+                break;
         }
 
-        Message msg;
+        Message msg = null;
+        CompletableFuture<Message> futureMsg = null;
+        String cacheKey = null;
+        String etag = null;
 
         try {
             if (!requestingHelp) {
 
 
+                //reported like any other error, echoing the request
                 if (!isReady()) {
                     throw new ProgressException(getInitProgress());
                 }
 
-                if (isUsageLimitExceeded(request)) {
-                    throw new UsageLimitException();
+                long retryDelay = chargeClient(request);
+                if (retryDelay >= 0) {
+                    rejectOverLimit(request, response, responseFormat, retryDelay);
+                    return true;
                 }
             }
 
             if (responseFormat == ResponseFormat.DIRECT) {
                 buildUnwrappedResponse(request, response);
                 response.getWriter().flush();
-                return;
+                return true;
             } else {
 
                 if (requestingHelp) {
-                    msg = new HelpMessage(request, this);
+                    msg = getHelpTemplate().createMessage(request);
                 } else {
-                    msg = buildWrappedResponse(request);
+                    if (isCacheable()) {
+                        String versionToken = getVersionToken(request);
+                        if (versionToken != null) {
+                            etag = createETag((ResponseCache.getCanonicalKey(request, responseFormat) + '\u0000' + prettyPrint + '\u0000' + versionToken).getBytes(StandardCharsets.UTF_8));
+                            if (isNotModified(request, response, etag)) {
+                                return true;
+                            }
+                        }
+                    }
+
+                    ResponseCache cache = responseCache;
+                    if (cache != null) {
+                        cacheKey = cache.getKey(request, responseFormat);
+                        byte[] body = cache.get(cacheKey);
+                        if (body != null) {
+                            if (isCacheable()) {
+                                if (etag == null) {
+                                    etag = createETag(body);
+                                    if (isNotModified(request, response, etag)) {
+                                        return true;
+                                    }
+                                }
+                                setValidators(response, etag);
+                            }
+                            writeBody(body, response);
+                            return true;
+                        }
+                    }
+
+                    futureMsg = buildAsyncResponse(request);
+
+                    if (futureMsg == null) {
+                        msg = buildWrappedResponse(request);
+                    } else if (!request.isAsyncSupported()) {
+                        //the container will not let us release this thread, so wait for the response here
+                        CompletableFuture<Message> f = futureMsg;
+                        futureMsg = null;
+                        msg = f.get();
+                    }
                 }
             }
 
@@ -174,25 +350,299 @@ public abstract class Service extends HttpServlet {
             if (responseFormat == ResponseFormat.DIRECT) {
                 throw new ServletException(e);
             } else {
-                msg = new ErrorMessage(request, e);
+                msg = createErrorMessage(request, unwrap(e));
             }
         }
 
+        if (futureMsg != null) {
+            completeAsync(request, response, futureMsg, responseFormat, prettyPrint, cacheKey, etag);
+            return false;
+        }
+
+        writeResponse(request, response, msg, responseFormat, prettyPrint, cacheKey, etag);
+        return true;
+    }
+
+    /**
+     * Responds to a request made in-process (e.g. as one of the calls of a
+     * batch), with the same readiness and usage checks as a request made over
+     * HTTP. Responses are neither cached nor tagged.
+     *
+     * @param request the request made to the service
+     * @return a future that completes with the response, or with an
+     * {@link ErrorMessage} if the response could not be built
+     */
+    CompletableFuture<Message> invoke(final HttpServletRequest request) {
+
+        CompletableFuture<Message> futureMsg;
+
         try {
-            if (responseFormat == ResponseFormat.XML) {
-                getHub().getXmlSerializer().write(msg, System.out);
-                getHub().getXmlSerializer().write(msg, response.getWriter());
-            } else {
-                getHub().getJsonSerializer().toJson(msg, response.getWriter());
+            prepareEcho(request);
+
+            if (prmHelp.getMemoizedValue(request)) {
+                return CompletableFuture.completedFuture((Message) new HelpMessage(request, this));
+            }
+
+            if (!isReady()) {
+                throw new ProgressException(getInitProgress());
+            }
+
+            if (chargeClient(request) >= 0) {
+                throw new UsageLimitException();
+            }
+
+            futureMsg = buildAsyncResponse(request);
+
+            if (futureMsg == null) {
+                futureMsg = CompletableFuture.completedFuture(buildWrappedResponse(request));
+            }
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(createErrorMessage(request, unwrap(e)));
+        }
+
+        return futureMsg.handle((Message msg, Throwable error) -> {
+            if (error != null) {
+                return createErrorMessage(request, unwrap(error));
+            }
+            if (msg instanceof StreamingMessage) {
+                return new ErrorMessage(request, "The response of this service cannot be embedded in another response");
+            }
+            if (msg instanceof ResponseTemplate.TemplatedMessage) {
+                //templates are only spliced into whole responses, so embed the message they render
+                return ((ResponseTemplate.TemplatedMessage) msg).toMessage();
+            }
+            return msg;
+        });
+    }
+
+    private void completeAsync(final HttpServletRequest request, final HttpServletResponse response, CompletableFuture<Message> futureMsg,
+            final ResponseFormat responseFormat, final boolean prettyPrint, final String cacheKey, final String etag) {
+
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        final AtomicBoolean completed = new AtomicBoolean(false);
+
+        if (asyncTimeout > 0) {
+            asyncContext.setTimeout(asyncTimeout);
+        }
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                Message msg = createErrorMessage(request, new TimeoutException("The service did not respond in time"));
+                complete(asyncContext, completed, request, response, msg, responseFormat, prettyPrint, null, null);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        futureMsg.whenComplete((Message msg, Throwable error) -> {
+            if (error != null) {
+                msg = createErrorMessage(request, unwrap(error));
+            }
+            complete(asyncContext, completed, request, response, msg, responseFormat, prettyPrint, cacheKey, etag);
+        });
+    }
+
+    private void complete(AsyncContext asyncContext, AtomicBoolean completed, HttpServletRequest request, HttpServletResponse response,
+            Message msg, ResponseFormat responseFormat, boolean prettyPrint, String cacheKey, String etag) {
+
+        //a response may time out and complete at the same time, but only one of them gets written
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            writeResponse(request, response, msg, responseFormat, prettyPrint, cacheKey, etag);
+
+            if (response instanceof CompressedResponse) {
+                ((CompressedResponse) response).finish();
             }
+        } catch (Exception e) {
+            log("Could not write asynchronous response", e);
+        } finally {
+            asyncContext.complete();
+        }
+    }
+
+    private void writeResponse(HttpServletRequest request, HttpServletResponse response, Message msg,
+            ResponseFormat responseFormat, boolean prettyPrint, String cacheKey, String etag) throws ServletException {
+
+        try {
+            boolean failed = msg instanceof ErrorMessage;
+            boolean streaming = msg instanceof StreamingMessage;
+
+            ResponseCache cache = responseCache;
+            boolean caching = cacheKey != null && cache != null;
+            boolean tagging = isCacheable() && !failed && (etag != null || !streaming);
 
-            response.getWriter().flush();
+            if (!failed && !streaming && (caching || (tagging && etag == null))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                writeMessage(msg, responseFormat, prettyPrint, out);
+                byte[] body = out.toByteArray();
+
+                if (caching) {
+                    cache.put(cacheKey, body);
+                }
+
+                if (tagging) {
+                    if (etag == null) {
+                        etag = createETag(body);
+                        if (isNotModified(request, response, etag)) {
+                            return;
+                        }
+                    }
+                    setValidators(response, etag);
+                }
+
+                writeBody(body, response);
+            } else {
+                if (tagging) {
+                    setValidators(response, etag);
+                }
+                writeMessage(msg, responseFormat, prettyPrint, response.getOutputStream());
+                response.getOutputStream().flush();
+            }
 
         } catch (Exception e) {
             throw new ServletException(e);
         }
     }
 
+    private Message createErrorMessage(HttpServletRequest request, Exception error) {
+        return new ErrorMessage(request, error, tracePolicy);
+    }
+
+    /**
+     * Rejects a request from a client that has exceeded its usage limits,
+     * with 429 Too Many Requests and a small prepared body. The client is
+     * told to retry once it is back within its limits.
+     */
+    private void rejectOverLimit(HttpServletRequest request, HttpServletResponse response, ResponseFormat responseFormat, long retryDelay) throws Exception {
+
+        long retryAfter = (retryDelay + 999) / 1000;
+
+        response.setStatus(SC_TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, retryAfter)));
+
+        if (responseFormat == ResponseFormat.DIRECT) {
+            response.setContentType("text/plain");
+        }
+
+        writeBody(preparedErrors.getBody(request.getServletPath(), new UsageLimitException(), tracePolicy, responseFormat), response);
+    }
+
+    private static Exception unwrap(Throwable error) {
+
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        if (error instanceof Exception) {
+            return (Exception) error;
+        } else {
+            return new Exception(error);
+        }
+    }
+
+    /**
+     * Sets the ETag and Cache-Control headers of a cacheable response, and
+     * answers with 304 Not Modified if the client already has a copy with the
+     * given ETag.
+     *
+     * @return true if the client's copy is still valid, and nothing more
+     * needs to be written
+     */
+    private boolean isNotModified(HttpServletRequest request, HttpServletResponse response, String etag) {
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        String tag = getRepresentationTag(response, etag);
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+
+            if (candidate.equals(tag) || candidate.equals("*")) {
+                setValidators(response, etag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void setValidators(HttpServletResponse response, String etag) {
+        response.setHeader("ETag", getRepresentationTag(response, etag));
+        response.setHeader("Cache-Control", maxAge > 0 ? "max-age=" + maxAge : "no-cache");
+    }
+
+    /**
+     * @return the given ETag, suffixed with the content encoding if the
+     * response is compressed, so that each encoding has its own strong tag
+     */
+    private static String getRepresentationTag(HttpServletResponse response, String etag) {
+
+        if (!(response instanceof CompressedResponse)) {
+            return etag;
+        }
+
+        String encoding = ((CompressedResponse) response).getEncoding();
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    private static String createETag(byte[] content) {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder etag = new StringBuilder("\"");
+        for (byte b : digest.digest(content)) {
+            etag.append(Character.forDigit((b >> 4) & 0xF, 16));
+            etag.append(Character.forDigit(b & 0xF, 16));
+        }
+        etag.append('"');
+
+        return etag.toString();
+    }
+
+    private void writeMessage(Message msg, ResponseFormat responseFormat, boolean prettyPrint, OutputStream out) throws Exception {
+
+        if (msg instanceof ResponseTemplate.TemplatedMessage) {
+            ((ResponseTemplate.TemplatedMessage) msg).write(responseFormat, prettyPrint, out);
+        } else if (msg instanceof StreamingMessage) {
+            ((StreamingMessage<?>) msg).write(getHub(), responseFormat, prettyPrint, out);
+        } else {
+            getHub().serialize(msg, responseFormat, prettyPrint, out);
+        }
+    }
+
+    private void writeBody(byte[] body, HttpServletResponse response) throws IOException {
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+        response.getOutputStream().flush();
+    }
+
     @Override
     public void destroy() {
         getHub().dropService(this);
@@ -200,6 +650,100 @@ public abstract class Service extends HttpServlet {
 
     public abstract Message buildWrappedResponse(HttpServletRequest request) throws Exception;
 
+    /**
+     * Starts building the response to the given request without waiting for
+     * it. If this returns a future, the container thread is released (if the
+     * servlet is asynchronously supported) and the response is written once
+     * the future completes.
+     *
+     * @param request the request made to the service
+     * @return the response to come, or null if the response should be built
+     * by {@link #buildWrappedResponse(HttpServletRequest)} instead
+     * @throws Exception if the response could not be started
+     */
+    CompletableFuture<Message> buildAsyncResponse(final HttpServletRequest request) throws Exception {
+
+        if (!virtualThreads) {
+            return null;
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return buildWrappedResponse(request);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, getHub().getBlockingExecutor());
+    }
+
+    /**
+     * Specifies whether responses should be built on a virtual thread (or a
+     * bounded pool of platform threads, on JVMs without virtual threads)
+     * rather than the container thread. This suits services that block on
+     * JDBC, file or network I/O. By default this is taken from the
+     * <em>executionMode</em> servlet or context parameter.
+     *
+     * @param virtualThreads true if responses should be built on virtual
+     * threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Specifies how much of an exception's stack trace is included in the
+     * error messages of this service. By default this is taken from the
+     * <em>tracePolicy</em> servlet or context parameter.
+     *
+     * @param tracePolicy how much of stack traces to include
+     */
+    public void setTracePolicy(TracePolicy tracePolicy) {
+        this.tracePolicy = tracePolicy;
+    }
+
+    public TracePolicy getTracePolicy() {
+        return tracePolicy;
+    }
+
+    /**
+     * Specifies whether responses of this service should echo back the
+     * parameters of the request. If they do, clients can still opt out with
+     * the <em>echo</em> parameter.
+     *
+     * @param requestEchoed false if requests should never be echoed
+     */
+    public void setRequestEchoed(boolean requestEchoed) {
+        this.requestEchoed = requestEchoed;
+    }
+
+    private boolean isRequestEchoed(HttpServletRequest request) {
+        return requestEchoed && prmEcho.getMemoizedValue(request);
+    }
+
+    private void prepareEcho(HttpServletRequest request) {
+
+        if (!isRequestEchoed(request)) {
+            RequestEcho.disable(request);
+        } else if (getHub().getKeyParam() != null) {
+            //api keys must never be echoed back, where they might be logged or cached
+            RequestEcho.hide(request, getHub().getKeyParam());
+        }
+    }
+
+    /**
+     * Sets the number of milliseconds asynchronous responses may take before
+     * they are abandoned with an error message
+     *
+     * @param asyncTimeout the timeout, or 0 to use the container's default
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
     public void buildUnwrappedResponse(HttpServletRequest request, HttpServletResponse response) throws Exception {
         throw new UnsupportedOperationException();
     }
@@ -216,18 +760,47 @@ public abstract class Service extends HttpServlet {
         return 1;
     }
 
-    private boolean isUsageLimitExceeded(HttpServletRequest request) {
+    /**
+     * Charges the client that made the given request for it
+     *
+     * @return the number of milliseconds until the client is back within its
+     * limits, or -1 if it is within them
+     */
+    private long chargeClient(HttpServletRequest request) {
         Client client = getHub().identifyClient(request);
 
         if (client == null) {
-            return false;
+            return -1;
         }
 
-        if (getUsageCost(request) == 0) {
-            return false;
+        int usageCost = getUsageCost(request);
+
+        if (usageCost == 0) {
+            return -1;
+        }
+
+        if (!client.update(usageCost)) {
+            return -1;
         }
 
-        return client.update(getUsageCost(request));
+        return client.getRetryDelay();
+    }
+
+    /**
+     * Returns the template the help for this service is rendered from. This is
+     * rendered once, and again whenever parameters or examples are added.
+     */
+    private ResponseTemplate getHelpTemplate() {
+
+        ResponseTemplate template = helpTemplate;
+
+        if (template == null) {
+            template = new ResponseTemplate(this, (String serviceName, Map<String, String> requestEcho, boolean includeBody)
+                    -> new HelpMessage(serviceName, requestEcho, includeBody ? this : null));
+            helpTemplate = template;
+        }
+
+        return template;
     }
 
     public String getBasePath(HttpServletRequest request) {
@@ -257,23 +830,34 @@ public abstract class Service extends HttpServlet {
 
     public void addParameterGroup(ParameterGroup paramGroup) {
         parameterGroups.add(paramGroup);
+        helpTemplate = null;
+        parameterGroupIndex = null;
     }
 
     @SuppressWarnings("rawtypes")
     public void addGlobalParameter(Parameter param) {
         globalParameters.add(param);
+        helpTemplate = null;
     }
 
     public ParameterGroup getSpecifiedParameterGroup(HttpServletRequest request) {
+        return getParameterGroupIndex().getSpecifiedGroup(request);
+    }
 
+    /**
+     * Returns the index parameter groups are resolved with. This is built
+     * once, and again whenever parameter groups are added.
+     */
+    private ParameterGroupIndex getParameterGroupIndex() {
 
-        for (ParameterGroup paramGroup : parameterGroups) {
-            if (paramGroup.isSpecified(request)) {
-                return paramGroup;
-            }
+        ParameterGroupIndex index = parameterGroupIndex;
+
+        if (index == null) {
+            index = new ParameterGroupIndex(parameterGroups);
+            parameterGroupIndex = index;
         }
 
-        return null;
+        return index;
     }
 
     public static class Example {
@@ -352,7 +936,8 @@ public abstract class Service extends HttpServlet {
         private double _progress;
 
         public ProgressException(double progress) {
-            super("Wikipedia is not yet ready. Current progress is " + progressFormat.format(progress));
+            //thrown whenever a request arrives before the service is ready, so no stack trace is captured
+            super("Wikipedia is not yet ready. Current progress is " + progressFormat.format(progress), null, false, false);
             _progress = progress;
         }
 
@@ -364,7 +949,8 @@ public abstract class Service extends HttpServlet {
     public static class UsageLimitException extends Exception {
 
         public UsageLimitException() {
-            super("You have exceeded your usage limits");
+            //thrown whenever a client exceeds its limits, so no stack trace is captured
+            super("You have exceeded your usage limits", null, false, false);
         }
     }
 
@@ -374,23 +960,47 @@ public abstract class Service extends HttpServlet {
         @Attribute
         private String service;
         @Expose
-        @ElementMap(attribute = true, entry = "param", key = "name")
-        private HashMap<String, String> request = new HashMap<>();
-
+        @ElementMap(attribute = true, entry = "param", key = "name", required = false)
+        private Map<String, String> request;
+
+        /**
+         * Initialises a new message. The parameters of the request are echoed
+         * back (unless the service or request opts out), straight from the
+         * request, so a message must not outlive its request.
+         *
+         * @param httpRequest the request made to the service
+         */
         public Message(HttpServletRequest httpRequest) {
             this.service = httpRequest.getServletPath();
+            this.request = RequestEcho.of(httpRequest);
+        }
 
-            for (@SuppressWarnings("unchecked") Enumeration<String> e = httpRequest.getParameterNames(); e.hasMoreElements();) {
-                String paramName = e.nextElement();
-                request.put(paramName, httpRequest.getParameter(paramName));
-            }
+        protected Message(String serviceName, Map<String, String> requestEcho) {
+            this.service = serviceName;
+            this.request = requestEcho;
         }
 
         public String getServiceName() {
             return service;
         }
 
+        /**
+         * Returns a copy of the request parameters echoed back by this
+         * message. The echo itself is read straight from the request, so this
+         * must be called while the request is still being handled; the copy
+         * may be kept for as long as needed.
+         *
+         * @return parameter values by name, which is empty if the request is
+         * not echoed
+         */
         public HashMap<String, String> getRequest() {
+            if (request == null) {
+                return new HashMap<>();
+            }
+            return new HashMap<>(request);
+        }
+
+        Map<String, String> getRequestEcho() {
             return request;
         }
     }
@@ -1,7 +1,9 @@
 package org.xjsf;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
@@ -14,6 +16,8 @@ import java.util.Map;
 import org.xjsf.UtilityMessages.ErrorMessage;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 
 /**
@@ -25,6 +29,7 @@ public class ServiceCaller {
 	//TODO:  how to get around a proxy?
 	
 	private final URL _wmServer ;
+	private final Service.ResponseFormat _responseFormat ;
 	private final Gson _gson = new Gson() ;
 	
 	/**
@@ -32,7 +37,22 @@ public class ServiceCaller {
 	 * @param wmServer the URL of the wikipedia miner server to call.
 	 */
 	public ServiceCaller(URL wmServer) {
+		this(wmServer, Service.ResponseFormat.JSON) ;
+	}
+	
+	/**
+	 * 
+	 * @param wmServer the URL of the wikipedia miner server to call.
+	 * @param responseFormat the format responses should be transferred in; either JSON, or CBOR for a more compact binary encoding.
+	 */
+	public ServiceCaller(URL wmServer, Service.ResponseFormat responseFormat) {
+		
+		if (responseFormat != Service.ResponseFormat.JSON && responseFormat != Service.ResponseFormat.CBOR) {
+			throw new IllegalArgumentException("Responses can only be transferred as JSON or CBOR") ;
+		}
+		
 		_wmServer = wmServer ;
+		_responseFormat = responseFormat ;
 	}
 	
 	
@@ -51,26 +71,26 @@ public class ServiceCaller {
 		
 		String paramData = getParamData(params) ;
 		
-		String json = getResponse(serviceName, paramData) ;
+		JsonElement response = getResponse(serviceName, paramData) ;
 		
 		//try parsing as error first
 		ErrorMessage errorMsg = null ;
 		try {
-			errorMsg = _gson.fromJson(json, ErrorMessage.class) ;
+			errorMsg = _gson.fromJson(response, ErrorMessage.class) ;
 		} catch (JsonSyntaxException e) {
 			errorMsg = null ;
 		}
 		if (errorMsg != null && errorMsg.getError() != null && errorMsg.getError().trim().length() > 0) {
-                throw new ServiceException(errorMsg, json) ;
+                throw new ServiceException(errorMsg, response.toString()) ;
             }
 		
-		return _gson.fromJson(json, messageClass) ;
+		return _gson.fromJson(response, messageClass) ;
 	}
 	
 	private String getParamData(HashMap<String, String> params) throws UnsupportedEncodingException {
 		
 		//build up param data
-		StringBuilder paramData = new StringBuilder("responseFormat=JSON") ;
+		StringBuilder paramData = new StringBuilder("responseFormat=" + _responseFormat.name()) ;
 		for(Map.Entry<String,String> param:params.entrySet()) {
 			
 			if (param.getKey().equalsIgnoreCase("responseFormat")) {
@@ -86,7 +106,7 @@ public class ServiceCaller {
 		return paramData.toString() ;
 	}
 	
-	private String getResponse(String serviceName, String paramData) throws IOException {
+	private JsonElement getResponse(String serviceName, String paramData) throws IOException {
 		
 		//build url
 		URL url = new URL(_wmServer.toString() + "/services/" + serviceName) ;
@@ -99,6 +119,13 @@ public class ServiceCaller {
             try (OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream())) {
                 wr.write(paramData.toString());
                 wr.flush();
+                
+                if (_responseFormat == Service.ResponseFormat.CBOR) {
+                    try (InputStream in = new BufferedInputStream(conn.getInputStream())) {
+                        return Cbor.read(in) ;
+                    }
+                }
+                
                 response = new StringBuilder();
                 rd = new BufferedReader(new InputStreamReader(conn.getInputStream()));
                 String line;
@@ -109,7 +136,7 @@ public class ServiceCaller {
             }
 	    rd.close();
 		
-		return response.toString() ;
+		return new JsonParser().parse(response.toString()) ;
 	}
 
 	@SuppressWarnings("serial")
@@ -3,55 +3,144 @@ package org.xjsf;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import java.io.File;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.simpleframework.xml.core.Persister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ServiceHub {
 
+    private static final Logger logger = LoggerFactory.getLogger(ServiceHub.class);
     private static ServiceHub instance;
-    private ClientList clientList;
-    private HashMap<String, Client> clientsByName;
-    private HashMap<String, Service> registeredServices;
+    private volatile ClientTable clientTable;
+    private File clientFile;
+    private boolean clientFileIndexed;
+    private long clientFileModified;
+    private long clientFileLength;
+    private ScheduledExecutorService clientFileWatcher;
+    private CidrMap<Boolean> trustedProxies;
+    private volatile Registry registry = new Registry(0, new HashMap<String, Service>());
     private DecimalFormat decimalFormat = (DecimalFormat) NumberFormat.getInstance(Locale.US);
     private Gson jsonSerializer;
+    private Gson prettyJsonSerializer;
+    private boolean prettyPrint;
+    private boolean compression;
+    private int compressionThreshold;
+    private int compressionLevel;
+    private boolean virtualThreads;
+    private boolean echo;
+    private Service.TracePolicy tracePolicy;
+    private int blockingThreads;
+    private volatile ExecutorService blockingExecutor;
+    private boolean shutDown;
     private Persister xmlSerializer;
 
     // Protect the constructor, so no other class can call it
     private ServiceHub(ServletContext context) throws ServletException {
 
-        registeredServices = new HashMap<>();
-
         try {
-            String clientFile = context.getInitParameter("clientFile");
-
-            if (clientFile != null) {
-                clientList = new ClientList(new File(clientFile));
+            String clientFileParam = context.getInitParameter("clientFile");
+
+            ClientList clientList;
+            if (clientFileParam != null) {
+                clientFile = new File(clientFileParam);
+                clientFileIndexed = Boolean.parseBoolean(context.getInitParameter("clientFileIndex"));
+                //noted before parsing, so changes made while parsing are picked up later
+                clientFileModified = clientFile.lastModified();
+                clientFileLength = clientFile.length();
+                clientList = new ClientList(clientFile, clientFileIndexed);
             } else {
                 clientList = new ClientList();
             }
 
-            clientsByName = clientList.getClientsByName();
+            String maxClientsParam = context.getInitParameter("maxClients");
+            int maxClients = maxClientsParam != null ? Integer.parseInt(maxClientsParam) : ClientTable.DEFAULT_MAX_CLIENTS;
+
+            String clientIdleTimeoutParam = context.getInitParameter("clientIdleTimeout");
+            long clientIdleTimeout = clientIdleTimeoutParam != null ? Long.parseLong(clientIdleTimeoutParam) * 1000 : ClientTable.DEFAULT_IDLE_TIMEOUT;
+
+            clientTable = new ClientTable(clientList, maxClients, clientIdleTimeout);
+
+            String clientFileCheckIntervalParam = context.getInitParameter("clientFileCheckInterval");
+            int clientFileCheckInterval = clientFileCheckIntervalParam != null ? Integer.parseInt(clientFileCheckIntervalParam) : 10;
+
+            if (clientFile != null && clientFileCheckInterval > 0) {
+                watchClientFile(clientFileCheckInterval);
+            }
+
+            //X-Forwarded-For is only believed when it is set by one of these
+            trustedProxies = new CidrMap<>();
+            String trustedProxiesParam = context.getInitParameter("trustedProxies");
+            if (trustedProxiesParam != null) {
+                for (String range : trustedProxiesParam.split(",")) {
+                    if (!range.trim().isEmpty()) {
+                        trustedProxies.put(range.trim(), Boolean.TRUE);
+                    }
+                }
+            }
 
             jsonSerializer = new GsonBuilder()
+                    .excludeFieldsWithoutExposeAnnotation()
+                    .create();
+
+            prettyJsonSerializer = new GsonBuilder()
                     .excludeFieldsWithoutExposeAnnotation()
                     .setPrettyPrinting()
                     .create();
 
-            xmlSerializer = new Persister();
+            prettyPrint = Boolean.parseBoolean(context.getInitParameter("prettyPrint"));
+
+            String echoParam = context.getInitParameter("echo");
+            echo = echoParam == null || Boolean.parseBoolean(echoParam);
+
+            String tracePolicyParam = context.getInitParameter("tracePolicy");
+            tracePolicy = tracePolicyParam != null ? Service.TracePolicy.valueOf(tracePolicyParam.toUpperCase()) : Service.TracePolicy.FULL;
+
+            //off unless asked for, so existing deployments keep sending identical bytes
+            compression = Boolean.parseBoolean(context.getInitParameter("compression"));
+
+            String compressionThresholdParam = context.getInitParameter("compressionThreshold");
+            compressionThreshold = compressionThresholdParam != null ? Integer.parseInt(compressionThresholdParam) : 1024;
+
+            String compressionLevelParam = context.getInitParameter("compressionLevel");
+            compressionLevel = compressionLevelParam != null ? Integer.parseInt(compressionLevelParam) : 6;
+
+            virtualThreads = "virtual".equalsIgnoreCase(context.getInitParameter("executionMode"));
+
+            String blockingThreadsParam = context.getInitParameter("blockingThreads");
+            blockingThreads = blockingThreadsParam != null ? Integer.parseInt(blockingThreadsParam) : 64;
+
+            xmlSerializer = new Persister(new RequestEcho.XmlStrategy());
         } catch (Exception e) {
             throw new ServletException(e);
         }
     }
 
-    public static ServiceHub getInstance(ServletContext context) throws ServletException {
+    public static synchronized ServiceHub getInstance(ServletContext context) throws ServletException {
 
         if (instance != null) {
             return instance;
@@ -62,20 +151,69 @@ public class ServiceHub {
 
     }
 
-    public void registerService(Service service) {
-        registeredServices.put(service.getServletName(), service);
+    public synchronized void registerService(Service service) {
+        HashMap<String, Service> services = new HashMap<>(registry.services);
+        services.put(service.getServletName(), service);
+        registry = new Registry(registry.version + 1, services);
+    }
+
+    /**
+     * Drops a service that is being taken out of service. Once the last
+     * service has been dropped the hub is shut down, so that none of its
+     * threads outlive the web application.
+     *
+     * @param service the service to drop
+     */
+    public synchronized void dropService(Service service) {
+        HashMap<String, Service> services = new HashMap<>(registry.services);
+        if (services.remove(service.getServletName()) != null) {
+            registry = new Registry(registry.version + 1, services);
+            if (services.isEmpty()) {
+                shutdown();
+            }
+        }
     }
 
-    public void dropService(Service service) {
-        registeredServices.remove(service.getServletName());
+    /**
+     * Stops the threads started by this hub. Services registered afterwards
+     * are given a new hub.
+     */
+    private void shutdown() {
+
+        synchronized (ServiceHub.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+
+        if (clientFileWatcher != null) {
+            clientFileWatcher.shutdownNow();
+        }
+
+        //blocking work still in progress is interrupted, rather than left running after the application stops
+        shutDown = true;
+        if (blockingExecutor != null) {
+            blockingExecutor.shutdownNow();
+        }
     }
 
     public Set<String> getServiceNames() {
-        return registeredServices.keySet();
+        return registry.services.keySet();
     }
 
     public Service getService(String serviceName) {
-        return registeredServices.get(serviceName);
+        return registry.services.get(serviceName);
+    }
+
+    /**
+     * Returns an immutable snapshot of the services that are currently
+     * registered. A new snapshot (with a higher version) is created whenever a
+     * service is registered or dropped.
+     *
+     * @return the services that are currently registered
+     */
+    public Registry getRegistry() {
+        return registry;
     }
 
     public Persister getXmlSerializer() {
@@ -86,19 +224,219 @@ public class ServiceHub {
         return jsonSerializer;
     }
 
+    public Gson getJsonSerializer(boolean prettyPrint) {
+        return prettyPrint ? prettyJsonSerializer : jsonSerializer;
+    }
+
+    /**
+     * Returns true if JSON responses should be pretty printed unless requests
+     * say otherwise, as specified by the <em>prettyPrint</em> context parameter
+     *
+     * @return true if JSON responses should be pretty printed by default
+     */
+    public boolean isPrettyPrintedByDefault() {
+        return prettyPrint;
+    }
+
+    /**
+     * Wraps the given response so that it is compressed, if compression is
+     * enabled (it is off unless the <em>compression</em> context parameter is
+     * true, and is tuned by the <em>compressionThreshold</em> and
+     * <em>compressionLevel</em> context parameters) and the client accepts
+     * gzip or deflate encoding.
+     *
+     * @param request the request made by the client
+     * @param response the response to compress
+     * @return a compressed response, or null if the response should not be
+     * compressed
+     */
+    public CompressedResponse compress(HttpServletRequest request, HttpServletResponse response) {
+
+        if (!compression) {
+            return null;
+        }
+
+        response.addHeader("Vary", "Accept-Encoding");
+
+        String encoding = CompressedResponse.negotiateEncoding(request);
+        if (encoding == null) {
+            return null;
+        }
+
+        return new CompressedResponse(response, encoding, compressionThreshold, compressionLevel);
+    }
+
+    /**
+     * Returns true if responses should echo back the parameters of requests
+     * unless configured otherwise, as specified by the <em>echo</em> context
+     * parameter (true if unspecified)
+     *
+     * @return true if requests should be echoed by default
+     */
+    public boolean isEchoedByDefault() {
+        return echo;
+    }
+
+    /**
+     * Returns how much of stack traces services include in error messages
+     * unless configured otherwise, as specified by the <em>tracePolicy</em>
+     * context parameter (<em>none</em>, <em>message</em> or <em>full</em>,
+     * which is the default)
+     *
+     * @return the default trace policy
+     */
+    public Service.TracePolicy getDefaultTracePolicy() {
+        return tracePolicy;
+    }
+
+    /**
+     * Returns true if services should build their responses on virtual
+     * threads unless configured otherwise, as specified by setting the
+     * <em>executionMode</em> context parameter to <em>virtual</em>
+     *
+     * @return true if services should use virtual threads by default
+     */
+    public boolean isVirtualThreadsByDefault() {
+        return virtualThreads;
+    }
+
+    /**
+     * Returns the executor that blocking work is dispatched to. This starts a
+     * virtual thread per task when the JVM supports them, and otherwise
+     * falls back to a bounded pool of platform threads (sized by the
+     * <em>blockingThreads</em> context parameter). The executor is shut down
+     * along with the hub, once its last service has been dropped.
+     *
+     * @return the executor for blocking work
+     * @throws IllegalStateException if the hub has been shut down
+     */
+    public ExecutorService getBlockingExecutor() {
+
+        ExecutorService executor = blockingExecutor;
+
+        if (executor == null) {
+            synchronized (this) {
+                executor = blockingExecutor;
+                if (executor == null) {
+                    if (shutDown) {
+                        throw new IllegalStateException("The service hub has been shut down");
+                    }
+                    executor = createBlockingExecutor(blockingThreads);
+                    blockingExecutor = executor;
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    private static ExecutorService createBlockingExecutor(int maxThreads) {
+
+        //looked up reflectively, so the framework still builds and runs on JVMs without virtual threads
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            //fall through to platform threads
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = (Runnable r) -> {
+            Thread thread = new Thread(r, "xjsf-blocking-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxThreads * 16), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public void serialize(Object msg, Service.ResponseFormat responseFormat, OutputStream out) throws Exception {
+        serialize(msg, responseFormat, false, out);
+    }
+
+    public void serialize(Object msg, Service.ResponseFormat responseFormat, boolean prettyPrint, OutputStream out) throws Exception {
+
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+        switch (responseFormat) {
+            case XML:
+                xmlSerializer.write(msg, writer);
+                break;
+            case NDJSON:
+                jsonSerializer.toJson(msg, writer);
+                writer.write('\n');
+                break;
+            case CBOR:
+                Cbor.write(jsonSerializer.toJsonTree(msg), out);
+                break;
+            default:
+                getJsonSerializer(prettyPrint).toJson(msg, writer);
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * @return the name of the parameter that clients can give their api keys
+     * in, or null if keys can only be given in a header
+     */
+    public String getKeyParam() {
+        return clientTable.getClientList().getKeyParam();
+    }
+
+    /**
+     * @return the clients known to this hub
+     */
+    public ClientTable getClientTable() {
+        return clientTable;
+    }
+
     public String format(double number) {
         return decimalFormat.format(number);
     }
 
+    /**
+     * Returns the client that made the given request. Clients are identified
+     * by api key, then by the name and password given in cookies, and then by
+     * the address the request came from. Requests with keys or passwords that
+     * do not match are treated as if they had given none.
+     *
+     * @param request the request made to a service
+     * @return the client that made the request
+     */
     public Client identifyClient(HttpServletRequest request) {
 
+        //read once, so the whole request sees the same clients if they are reloaded
+        ClientTable clientTable = this.clientTable;
+        ClientList clientList = clientTable.getClientList();
+
+        //first, look for an api key ;
+        if (clientTable.hasKeys()) {
+
+            String key = request.getHeader(clientList.getKeyHeader());
+            if (key == null && clientList.getKeyParam() != null) {
+                key = request.getParameter(clientList.getKeyParam());
+            }
+
+            if (key != null) {
+                Client client = clientTable.getClientForKey(key.trim());
+                if (client != null) {
+                    return client;
+                }
+            }
+        }
+
         String username = null;
         String password = null;
 
-        //first, look for the cookie name ;
-        if (clientList.getCookieForUsername() != null) {
+        //then, look for the cookie name ;
+        Cookie[] cookies = request.getCookies();
+        if (clientList.getCookieForUsername() != null && cookies != null) {
 
-            for (Cookie cookie : request.getCookies()) {
+            for (Cookie cookie : cookies) {
 
                 if (cookie.getName().equals(clientList.getCookieForUsername())) {
                     username = cookie.getValue();
@@ -110,32 +448,117 @@ public class ServiceHub {
             }
         }
         if (username != null) {
-            Client client = clientsByName.get(username);
-            if (client == null) {
-                return null;
-            }
+            Client client = clientTable.getConfiguredClient(username);
 
-            if (client.passwordMatches(password)) {
-                return null;
+            if (client != null && client.passwordMatches(password)) {
+                return client;
             }
+        }
+
+        //failing that, use the remote address ;
+        //if there is no client for that address, a new one is made with no password, and same limits as default.
+        return clientTable.getClientForAddress(getClientAddress(request));
+
+    }
+
+    private void watchClientFile(int interval) {
 
-            return client;
+        clientFileWatcher = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "xjsf-client-file-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        clientFileWatcher.scheduleWithFixedDelay(this::reloadClientFileIfChanged, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reloads the client file if it has changed since it was last loaded, and
+     * swaps the reloaded clients in without losing their usage. This is only
+     * ever called by the watcher thread, never while handling requests.
+     */
+    private void reloadClientFileIfChanged() {
+
+        long modified = clientFile.lastModified();
+        long length = clientFile.length();
+
+        //a file that is missing may be in the middle of being replaced
+        if (modified == 0 || (modified == clientFileModified && length == clientFileLength)) {
+            return;
+        }
+
+        try {
+            ClientList clientList = new ClientList(clientFile, clientFileIndexed);
+
+            ClientTable previous = clientTable;
+            ClientTable reloaded = previous.reload(clientList);
+            clientTable = reloaded;
+
+            clientFileModified = modified;
+            clientFileLength = length;
+
+            logger.info("Reloaded client file '" + clientFile + "': " + reloaded.describeChanges(previous));
+        } catch (Exception e) {
+            //the clients already loaded are kept, and the file is tried again next time
+            logger.warn("Could not reload client file '" + clientFile + "'", e);
+        }
+    }
+
+    /**
+     * Returns the address a request was made from. This is the address of the
+     * connection (never a host name, which would have to be looked up) unless
+     * the connection is from a trusted proxy, in which case it is the last
+     * address in X-Forwarded-For that is not also a trusted proxy.
+     */
+    private String getClientAddress(HttpServletRequest request) {
+
+        String address = request.getRemoteAddr();
+
+        if (trustedProxies.isEmpty() || trustedProxies.get(address) == null) {
+            return address;
         }
 
-        //failing that, use the remote host ;
-        username = request.getRemoteHost();
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        if (forwardedFor == null) {
+            return address;
+        }
 
-        Client client = clientsByName.get(username);
-        if (client != null) {
-            return client;
+        int end = forwardedFor.length();
+        while (end > 0) {
+            int start = forwardedFor.lastIndexOf(',', end - 1) + 1;
+            String hop = forwardedFor.substring(start, end).trim();
+
+            if (!hop.isEmpty()) {
+                if (CidrMap.parseAddress(hop) == null) {
+                    break;
+                }
+                address = hop;
+                if (trustedProxies.get(hop) == null) {
+                    break;
+                }
+            }
+            end = start - 1;
         }
 
-        //if there is no client with that name, create a new one with no password, and same limits as default.
-        client = new Client(username, null, clientList.getDefaultClient());
+        return address;
+    }
+
+    public static class Registry {
 
-        clientsByName.put(username, client);
+        private final long version;
+        private final Map<String, Service> services;
 
-        return client;
+        private Registry(long version, HashMap<String, Service> services) {
+            this.version = version;
+            this.services = Collections.unmodifiableMap(services);
+        }
 
+        public long getVersion() {
+            return version;
+        }
+
+        public Map<String, Service> getServices() {
+            return services;
+        }
     }
 }
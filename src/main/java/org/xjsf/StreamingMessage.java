@@ -0,0 +1,241 @@
+package org.xjsf;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xjsf.Service.ResponseFormat;
+
+/**
+ * A message whose items are written to the response one at a time, rather than
+ * being collected in memory first. The message is serialized as usual (service
+ * name, request echo and any other exposed fields), and the items are written
+ * as a list named <em>itemsName</em> inside it, as they are produced by
+ * {@link #writeItems(ItemWriter)}.
+ * <p>
+ * In {@link ResponseFormat#NDJSON} format only the items are written, one per
+ * line, so the response can be consumed line by line. In
+ * {@link ResponseFormat#CBOR} format the message and its list of items are
+ * written with indefinite lengths, so they can also be streamed.
+ * <p>
+ * If writing items fails part way through, the list is closed and an
+ * <em>error</em> is appended to the message, since the response can no longer
+ * be replaced with an error message. The failure is also logged.
+ *
+ * @param <T> the type of items this message contains
+ */
+public abstract class StreamingMessage<T> extends Service.Message {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingMessage.class);
+
+    /**
+     * Receives the items of a streaming message
+     *
+     * @param <T> the type of items to expect
+     */
+    public interface ItemWriter<T> {
+
+        /**
+         * Serializes an item straight to the response
+         *
+         * @param item the item to write
+         * @throws IOException if the item could not be written
+         */
+        void write(T item) throws IOException;
+    }
+
+    private final String itemsName;
+
+    /**
+     * Initialises a new streaming message
+     *
+     * @param request the request made to the service
+     * @param itemsName the name of the element or field the items are
+     * written to
+     */
+    public StreamingMessage(HttpServletRequest request, String itemsName) {
+        super(request);
+        this.itemsName = itemsName;
+    }
+
+    public String getItemsName() {
+        return itemsName;
+    }
+
+    /**
+     * Produces the items of this message, passing each to the given writer as
+     * soon as it is available
+     *
+     * @param writer the writer to pass items to
+     * @throws Exception if the items could not be produced
+     */
+    public abstract void writeItems(ItemWriter<T> writer) throws Exception;
+
+    void write(final ServiceHub hub, ResponseFormat responseFormat, boolean prettyPrint, OutputStream out) throws Exception {
+
+        if (responseFormat == ResponseFormat.NDJSON) {
+            writeLines(hub, out);
+            return;
+        }
+
+        if (responseFormat == ResponseFormat.CBOR) {
+            writeCbor(hub, out);
+            return;
+        }
+
+        ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+        hub.serialize(this, responseFormat, prettyPrint, envelope);
+        String rendered = new String(envelope.toByteArray(), StandardCharsets.UTF_8).trim();
+
+        final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+        if (responseFormat == ResponseFormat.XML) {
+
+            String head;
+            String tail;
+            if (rendered.endsWith("/>")) {
+                int nameEnd = 1;
+                while (nameEnd < rendered.length() && !Character.isWhitespace(rendered.charAt(nameEnd))
+                        && rendered.charAt(nameEnd) != '/') {
+                    nameEnd++;
+                }
+                head = rendered.substring(0, rendered.length() - 2) + ">";
+                tail = "</" + rendered.substring(1, nameEnd) + ">";
+            } else {
+                int closeIndex = rendered.lastIndexOf("</");
+                head = rendered.substring(0, closeIndex);
+                tail = rendered.substring(closeIndex);
+            }
+
+            writer.write(head);
+            writer.write("<" + itemsName + ">");
+            writer.flush();
+
+            String error = null;
+            try {
+                writeItems((T item) -> {
+                    try {
+                        hub.getXmlSerializer().write(item, writer);
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                });
+            } catch (Exception e) {
+                error = describeFailure(e);
+            }
+
+            writer.write("</" + itemsName + ">");
+            if (error != null) {
+                writer.write("<error>" + StringEscapeUtils.escapeXml(error) + "</error>");
+            }
+            writer.write(tail);
+
+        } else {
+
+            final Gson jsonSerializer = hub.getJsonSerializer(prettyPrint);
+            int closeIndex = rendered.lastIndexOf('}');
+            String head = rendered.substring(0, closeIndex).trim();
+
+            writer.write(head);
+            if (!head.endsWith("{")) {
+                writer.write(",");
+            }
+            writer.write(hub.getJsonSerializer().toJson(itemsName));
+            writer.write(":[");
+            writer.flush();
+
+            final boolean[] first = {true};
+            String error = null;
+            try {
+                writeItems((T item) -> {
+                    if (!first[0]) {
+                        writer.write(",");
+                    }
+                    first[0] = false;
+                    jsonSerializer.toJson(item, writer);
+                });
+            } catch (Exception e) {
+                error = describeFailure(e);
+            }
+
+            writer.write("]");
+            if (error != null) {
+                writer.write(",\"error\":");
+                writer.write(hub.getJsonSerializer().toJson(error));
+            }
+            writer.write(rendered.substring(closeIndex));
+        }
+
+        writer.flush();
+    }
+
+    private void writeCbor(final ServiceHub hub, final OutputStream out) throws IOException {
+
+        JsonObject envelope = hub.getJsonSerializer().toJsonTree(this).getAsJsonObject();
+
+        Cbor.writeMapStart(out);
+        Cbor.writeEntries(envelope, out);
+        Cbor.writeString(itemsName, out);
+        Cbor.writeArrayStart(out);
+        out.flush();
+
+        String error = null;
+        try {
+            writeItems((T item) -> Cbor.write(hub.getJsonSerializer().toJsonTree(item), out));
+        } catch (Exception e) {
+            error = describeFailure(e);
+        }
+
+        Cbor.writeBreak(out);
+        if (error != null) {
+            Cbor.writeString("error", out);
+            Cbor.writeString(error, out);
+        }
+        Cbor.writeBreak(out);
+        out.flush();
+    }
+
+    private void writeLines(final ServiceHub hub, OutputStream out) throws IOException {
+
+        final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+        try {
+            writeItems((T item) -> {
+                hub.getJsonSerializer().toJson(item, writer);
+                writer.write('\n');
+            });
+        } catch (Exception e) {
+            writer.write("{\"error\":");
+            writer.write(hub.getJsonSerializer().toJson(describeFailure(e)));
+            writer.write("}\n");
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Logs a failure to write items, and describes it for the error that is
+     * appended to the response
+     *
+     * @param e the failure
+     * @return the message of the failure, or a description of it if it has
+     * no message; never null
+     */
+    private String describeFailure(Exception e) {
+
+        logger.error("Failed while streaming items of " + getClass().getName(), e);
+
+        String message = e.getMessage();
+        return message != null ? message : e.toString();
+    }
+}
@@ -17,7 +17,9 @@ public class UsageService extends Service{
 	@Override
 	public Message buildWrappedResponse(HttpServletRequest request) throws Exception {
 		
-		return new Message(request, getHub().identifyClient(request)) ;
+		Client client = getHub().identifyClient(request) ;
+		
+		return new Message(request, client != null ? client.snapshot() : null) ;
 	}
 
 	@Override 
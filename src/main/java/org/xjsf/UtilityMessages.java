@@ -1,7 +1,8 @@
 package org.xjsf;
 
-import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -19,7 +20,7 @@ public class UtilityMessages {
 
 		@Expose
 		@SerializedName(value="serviceDescription")
-		@Element(name="serviceDescription")
+		@Element(name="serviceDescription", required=false)
 		private Service service ;
 		
 		public HelpMessage(HttpServletRequest httpRequest, Service service) {
@@ -27,6 +28,12 @@ public class UtilityMessages {
 			
 			this.service = service ;
 		}
+		
+		HelpMessage(String serviceName, Map<String,String> requestEcho, Service service) {
+			super(serviceName, requestEcho) ;
+			
+			this.service = service ;
+		}
 
 		public Service getService() {
 			return service;
@@ -51,16 +58,40 @@ public class UtilityMessages {
 		}
 		
 		public ErrorMessage(HttpServletRequest httpRequest, Exception e) {
+			this(httpRequest, e, Service.TracePolicy.FULL) ;
+		}
+		
+		public ErrorMessage(HttpServletRequest httpRequest, Exception e, Service.TracePolicy tracePolicy) {
 			super(httpRequest) ;
 			error = e.getMessage() ;
-					
-			ByteArrayOutputStream writer1 = new ByteArrayOutputStream() ;
-			PrintWriter writer2 = new PrintWriter(writer1) ;
-			
-			e.printStackTrace(writer2) ;
+			trace = getTrace(e, tracePolicy) ;
+		}
+		
+		ErrorMessage(String serviceName, Map<String,String> requestEcho, String error, String trace) {
+			super(serviceName, requestEcho) ;
+			this.error = error ;
+			this.trace = trace ;
+		}
+		
+		/**
+		 * Returns the trace of the given exception, in as much detail as the given policy allows
+		 * 
+		 * @param e the exception to trace
+		 * @param tracePolicy how much of the trace to include
+		 * @return the trace, or null if none should be included
+		 */
+		static String getTrace(Exception e, Service.TracePolicy tracePolicy) {
 			
-			writer2.flush() ;
-			trace = writer1.toString() ;
+			switch (tracePolicy) {
+				case NONE:
+					return null ;
+				case MESSAGE:
+					return e.toString() ;
+				default:
+					StringWriter writer = new StringWriter() ;
+					e.printStackTrace(new PrintWriter(writer)) ;
+					return writer.toString() ;
+			}
 		}
 
 		public String getError() {
@@ -41,7 +41,7 @@ public class BooleanParameter extends Parameter<Boolean> {
         }
 
         if (s.equalsIgnoreCase("false") || s.equalsIgnoreCase("f")) {
-            return true;
+            return false;
         }
 
         throw new IllegalArgumentException();
@@ -0,0 +1,76 @@
+package org.xjsf.param;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A Parameter that expects a list of numbers, separated by commas, semicolons
+ * or colons. Values are parsed straight into an double[], without boxing.
+ */
+public class DoubleArrayParameter extends Parameter<double[]> {
+
+    private final int maxValues;
+
+    /**
+     * Initialises a new DoubleArrayParameter that accepts any number of values
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     */
+    public DoubleArrayParameter(String name, String description, double[] defaultValue) {
+        this(name, description, defaultValue, ValueLists.UNLIMITED);
+    }
+
+    /**
+     * Initialises a new DoubleArrayParameter
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     * @param maxValues the maximum number of values a request may specify
+     */
+    public DoubleArrayParameter(String name, String description, double[] defaultValue, int maxValues) {
+        super(name, description, defaultValue, "float list");
+        this.maxValues = maxValues;
+    }
+
+    @Override
+    public String getValueForDescription(double[] val) {
+
+        if (val.length == 0) {
+            return "empty list";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (double v : val) {
+            sb.append(v);
+            sb.append(",");
+        }
+        sb.deleteCharAt(sb.length() - 1);
+
+        return sb.toString();
+    }
+
+    @Override
+    public double[] getValue(HttpServletRequest request) throws IllegalArgumentException {
+
+        String s = request.getParameter(getName());
+
+        if (s == null) {
+            return getDefaultValue();
+        }
+
+        double[] values = new double[ValueLists.count(s, maxValues, getName())];
+
+        int start = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = ValueLists.valueEnd(s, start);
+            values[i] = ValueLists.getDouble(s, start, end, getName());
+            start = end + 1;
+        }
+
+        return values;
+    }
+}
@@ -1,6 +1,5 @@
 package org.xjsf.param;
 
-import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
 
@@ -15,6 +14,8 @@ import javax.servlet.http.HttpServletRequest;
 public class EnumSetParameter<T extends Enum<T>> extends Parameter<EnumSet<T>> {
 
     private final HashMap<String, T> valuesByName;
+    private final Class<T> enumClass;
+    private final int maxValues;
 
     public EnumSetParameter(
             String name,
@@ -22,8 +23,26 @@ public class EnumSetParameter<T extends Enum<T>> extends Parameter<EnumSet<T>> {
             EnumSet<T> defaultValue,
             T[] allValues,
             String[] valueDescriptions) {
+        this(name, description, defaultValue, allValues, valueDescriptions, ValueLists.UNLIMITED);
+    }
+
+    public EnumSetParameter(
+            String name,
+            String description,
+            EnumSet<T> defaultValue,
+            T[] allValues,
+            String[] valueDescriptions,
+            int maxValues) {
         super(name, description, defaultValue, "enum list");
 
+        //the enum class is taken from the values, so there must be at least one
+        if (allValues.length == 0) {
+            throw new IllegalArgumentException("an enum set parameter needs at least one value!");
+        }
+
+        this.enumClass = allValues[0].getDeclaringClass();
+        this.maxValues = maxValues;
+
         valuesByName = new HashMap<>();
         valueDescriptionsByName = new HashMap<>();
         for (int i = 0; i < allValues.length; i++) {
@@ -41,16 +60,21 @@ public class EnumSetParameter<T extends Enum<T>> extends Parameter<EnumSet<T>> {
             return getDefaultValue();
         }
 
-        ArrayList<T> _enums = new ArrayList<>();
-        for (String val : allVals.split("[,;:]")) {
+        int count = ValueLists.count(allVals, maxValues, getName());
+
+        EnumSet<T> _enums = EnumSet.noneOf(enumClass);
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = ValueLists.valueEnd(allVals, start);
 
-            T _enum = valuesByName.get(val.trim().toLowerCase());
+            T _enum = valuesByName.get(ValueLists.getString(allVals, start, end).toLowerCase());
 
             if (_enum != null) {
                 _enums.add(_enum);
             }
+            start = end + 1;
         }
 
-        return EnumSet.copyOf(_enums);
+        return _enums;
     }
 }
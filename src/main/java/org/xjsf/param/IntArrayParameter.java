@@ -0,0 +1,76 @@
+package org.xjsf.param;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A Parameter that expects a list of integers, separated by commas, semicolons
+ * or colons. Values are parsed straight into an int[], without boxing.
+ */
+public class IntArrayParameter extends Parameter<int[]> {
+
+    private final int maxValues;
+
+    /**
+     * Initialises a new IntArrayParameter that accepts any number of values
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     */
+    public IntArrayParameter(String name, String description, int[] defaultValue) {
+        this(name, description, defaultValue, ValueLists.UNLIMITED);
+    }
+
+    /**
+     * Initialises a new IntArrayParameter
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     * @param maxValues the maximum number of values a request may specify
+     */
+    public IntArrayParameter(String name, String description, int[] defaultValue, int maxValues) {
+        super(name, description, defaultValue, "integer list");
+        this.maxValues = maxValues;
+    }
+
+    @Override
+    public String getValueForDescription(int[] val) {
+
+        if (val.length == 0) {
+            return "empty list";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int v : val) {
+            sb.append(v);
+            sb.append(",");
+        }
+        sb.deleteCharAt(sb.length() - 1);
+
+        return sb.toString();
+    }
+
+    @Override
+    public int[] getValue(HttpServletRequest request) throws IllegalArgumentException {
+
+        String s = request.getParameter(getName());
+
+        if (s == null) {
+            return getDefaultValue();
+        }
+
+        int[] values = new int[ValueLists.count(s, maxValues, getName())];
+
+        int start = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = ValueLists.valueEnd(s, start);
+            values[i] = ValueLists.getInt(s, start, end, getName());
+            start = end + 1;
+        }
+
+        return values;
+    }
+}
@@ -1,12 +1,27 @@
 package org.xjsf.param;
 
-import java.util.ArrayList;
 import javax.servlet.http.HttpServletRequest;
 
 public class IntListParameter extends Parameter<Integer[]> {
 
+    private final int maxValues;
+
     public IntListParameter(String name, String description, Integer[] defaultValue) {
+        this(name, description, defaultValue, ValueLists.UNLIMITED);
+    }
+
+    /**
+     * Initialises a new IntListParameter
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     * @param maxValues the maximum number of values a request may specify
+     */
+    public IntListParameter(String name, String description, Integer[] defaultValue, int maxValues) {
         super(name, description, defaultValue, "integer list");
+        this.maxValues = maxValues;
     }
 
     @Override
@@ -35,11 +50,15 @@ public class IntListParameter extends Parameter<Integer[]> {
             return getDefaultValue();
         }
 
-        ArrayList<Integer> values = new ArrayList<Integer>();
-        for (String val : s.split("[,;:]")) {
-            values.add(Integer.parseInt(val.trim()));
+        Integer[] values = new Integer[ValueLists.count(s, maxValues, getName())];
+
+        int start = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = ValueLists.valueEnd(s, start);
+            values[i] = ValueLists.getInt(s, start, end, getName());
+            start = end + 1;
         }
 
-        return values.toArray(new Integer[values.size()]);
+        return values;
     }
 }
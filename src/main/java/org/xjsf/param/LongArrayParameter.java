@@ -0,0 +1,76 @@
+package org.xjsf.param;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A Parameter that expects a list of long integers, separated by commas, semicolons
+ * or colons. Values are parsed straight into an long[], without boxing.
+ */
+public class LongArrayParameter extends Parameter<long[]> {
+
+    private final int maxValues;
+
+    /**
+     * Initialises a new LongArrayParameter that accepts any number of values
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     */
+    public LongArrayParameter(String name, String description, long[] defaultValue) {
+        this(name, description, defaultValue, ValueLists.UNLIMITED);
+    }
+
+    /**
+     * Initialises a new LongArrayParameter
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     * @param maxValues the maximum number of values a request may specify
+     */
+    public LongArrayParameter(String name, String description, long[] defaultValue, int maxValues) {
+        super(name, description, defaultValue, "long list");
+        this.maxValues = maxValues;
+    }
+
+    @Override
+    public String getValueForDescription(long[] val) {
+
+        if (val.length == 0) {
+            return "empty list";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (long v : val) {
+            sb.append(v);
+            sb.append(",");
+        }
+        sb.deleteCharAt(sb.length() - 1);
+
+        return sb.toString();
+    }
+
+    @Override
+    public long[] getValue(HttpServletRequest request) throws IllegalArgumentException {
+
+        String s = request.getParameter(getName());
+
+        if (s == null) {
+            return getDefaultValue();
+        }
+
+        long[] values = new long[ValueLists.count(s, maxValues, getName())];
+
+        int start = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = ValueLists.valueEnd(s, start);
+            values[i] = ValueLists.getLong(s, start, end, getName());
+            start = end + 1;
+        }
+
+        return values;
+    }
+}
@@ -111,4 +111,19 @@ public abstract class Parameter<T> {
      * cannot be parsed
      */
     public abstract T getValue(HttpServletRequest request) throws IllegalArgumentException;
+
+    /**
+     * Returns the value of this parameter, as specified in the given request,
+     * parsing it at most once per request. This should be preferred over
+     * {@link #getValue(HttpServletRequest)} wherever a value may be asked for
+     * more than once.
+     *
+     * @param request the request made to the service
+     * @return the value of this parameter, as specified in the given request.
+     * @throws IllegalArgumentException if the value specified in this request
+     * cannot be parsed
+     */
+    public T getMemoizedValue(HttpServletRequest request) throws IllegalArgumentException {
+        return ParameterContext.get(request).getValue(this, request);
+    }
 }
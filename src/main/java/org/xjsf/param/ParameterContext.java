@@ -0,0 +1,93 @@
+package org.xjsf.param;
+
+import java.util.IdentityHashMap;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The parameter values parsed from a single request. This is stored as an
+ * attribute of the request, so that each parameter is parsed at most once
+ * however many times its value is asked for (by the framework when choosing
+ * the response format and parameter group, and again by the service itself).
+ * <p>
+ * A request is only ever handled by one thread at a time, so contexts are not
+ * synchronized.
+ */
+public class ParameterContext {
+
+    /**
+     * The name of the request attribute the context is stored under
+     */
+    public static final String ATTRIBUTE = ParameterContext.class.getName();
+    private static final Object NULL = new Object();
+    @SuppressWarnings("rawtypes")
+    private final IdentityHashMap<Parameter, Object> valuesByParameter = new IdentityHashMap<>();
+
+    private ParameterContext() {
+    }
+
+    /**
+     * Returns the context of the given request, creating it if it does not
+     * exist yet
+     *
+     * @param request the request made to the service
+     * @return the context of the given request
+     */
+    public static ParameterContext get(HttpServletRequest request) {
+
+        Object context = request.getAttribute(ATTRIBUTE);
+
+        if (context instanceof ParameterContext) {
+            return (ParameterContext) context;
+        }
+
+        ParameterContext newContext = new ParameterContext();
+        request.setAttribute(ATTRIBUTE, newContext);
+        return newContext;
+    }
+
+    /**
+     * Returns the value of the given parameter, parsing it only if it has not
+     * been parsed for this request before. Values that could not be parsed
+     * fail again (with the same exception) without being parsed again.
+     *
+     * @param param the parameter whose value is wanted
+     * @param request the request made to the service
+     * @return the value of the parameter, as specified in the request
+     * @throws IllegalArgumentException if the value specified in the request
+     * cannot be parsed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getValue(Parameter<T> param, HttpServletRequest request) throws IllegalArgumentException {
+
+        Object value = valuesByParameter.get(param);
+
+        if (value == null) {
+            try {
+                value = param.getValue(request);
+                if (value == null) {
+                    value = NULL;
+                }
+            } catch (IllegalArgumentException e) {
+                value = new Failure(e);
+            }
+            valuesByParameter.put(param, value);
+        }
+
+        if (value == NULL) {
+            return null;
+        }
+        if (value instanceof Failure) {
+            throw ((Failure) value).exception;
+        }
+        return (T) value;
+    }
+
+    private static class Failure {
+
+        private final IllegalArgumentException exception;
+
+        private Failure(IllegalArgumentException exception) {
+            this.exception = exception;
+        }
+    }
+}
@@ -75,7 +75,7 @@ public class ParameterGroup {
 
         for (Parameter param : parameters) {
 
-            if (param.getValue(request) == null) {
+            if (param.getMemoizedValue(request) == null) {
                 return false;
             }
         }
@@ -0,0 +1,88 @@
+package org.xjsf.param;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Resolves which of a service's parameter groups a request specifies. The
+ * mandatory parameters of each group are indexed up front, so a request's
+ * parameter names are only looked at once, and only the parameters of the
+ * group that is finally chosen are parsed.
+ */
+@SuppressWarnings("rawtypes")
+public class ParameterGroupIndex {
+
+    private final List<ParameterGroup> groups;
+    private final HashMap<String, Integer> indexesByName = new HashMap<>();
+    private final BitSet[] signatures;
+
+    /**
+     * Indexes the given parameter groups
+     *
+     * @param groups the groups to index, in order of preference
+     */
+    public ParameterGroupIndex(List<ParameterGroup> groups) {
+
+        this.groups = new ArrayList<>(groups);
+        this.signatures = new BitSet[this.groups.size()];
+
+        for (int i = 0; i < signatures.length; i++) {
+
+            BitSet signature = new BitSet();
+
+            for (Parameter param : this.groups.get(i).getParameters()) {
+
+                if (param.getDefaultValue() != null) {
+                    continue;
+                }
+
+                Integer index = indexesByName.get(param.getName());
+                if (index == null) {
+                    index = indexesByName.size();
+                    indexesByName.put(param.getName(), index);
+                }
+                signature.set(index);
+            }
+
+            signatures[i] = signature;
+        }
+    }
+
+    /**
+     * Returns the first group whose mandatory parameters are all specified in
+     * the given request
+     *
+     * @param request the request made to the service
+     * @return the first group specified by the request, or null if there is
+     * none
+     * @throws IllegalArgumentException if a value of the chosen group cannot
+     * be parsed
+     */
+    public ParameterGroup getSpecifiedGroup(HttpServletRequest request) throws IllegalArgumentException {
+
+        BitSet present = new BitSet(indexesByName.size());
+        for (@SuppressWarnings("unchecked") Enumeration<String> e = request.getParameterNames(); e.hasMoreElements();) {
+            Integer index = indexesByName.get(e.nextElement());
+            if (index != null) {
+                present.set(index);
+            }
+        }
+
+        for (int i = 0; i < signatures.length; i++) {
+
+            BitSet missing = (BitSet) signatures[i].clone();
+            missing.andNot(present);
+
+            //a parameter may be given but still have no value, so the candidate is confirmed by parsing it
+            if (missing.isEmpty() && groups.get(i).isSpecified(request)) {
+                return groups.get(i);
+            }
+        }
+
+        return null;
+    }
+}
@@ -1,11 +1,11 @@
 package org.xjsf.param;
 
-import java.util.ArrayList;
 import javax.servlet.http.HttpServletRequest;
 
 public class StringListParameter extends Parameter<String[]> {
     
     private boolean caseSensitive ;
+    private int maxValues = ValueLists.UNLIMITED ;
     
     
 /**
@@ -34,6 +34,21 @@ public class StringListParameter extends Parameter<String[]> {
         super(name, description, defaultValue, "string");
         caseSensitive = false;
     }
+
+    /**
+     * Initialises a new StringListParameter
+     *
+     * @param name the name of the parameter
+     * @param description a short description of what this parameter does
+     * @param defaultValue the value to use when requests do not specify a value
+     * for this parameter (may be null)
+     * @param caseSensitive true if you care about capitalisation of values
+     * @param maxValues the maximum number of values a request may specify
+     */
+    public StringListParameter(String name, String description, String[] defaultValue, boolean caseSensitive, int maxValues) {
+        this(name, description, defaultValue, caseSensitive);
+        this.maxValues = maxValues;
+    }
     
     
     @Override
@@ -62,10 +77,14 @@ public class StringListParameter extends Parameter<String[]> {
             return getDefaultValue();
         }
 
-        ArrayList<String> values = new ArrayList<>();
-        for (String val : s.split("[,;:]")) {
-            values.add((val.trim()));
+        String[] values = new String[ValueLists.count(s, maxValues, getName())];
+
+        int start = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = ValueLists.valueEnd(s, start);
+            values[i] = ValueLists.getString(s, start, end);
+            start = end + 1;
         }
-        return values.toArray(new String[values.size()]);
+        return values;
     }
 }
@@ -0,0 +1,151 @@
+package org.xjsf.param;
+
+/**
+ * Scans the values of list parameters, which are separated by commas,
+ * semicolons or colons. Values are found and parsed in place, without regular
+ * expressions or intermediate collections.
+ * <p>
+ * As with {@link String#split(String)}, trailing empty values are ignored.
+ */
+final class ValueLists {
+
+    /**
+     * The maximum number of values list parameters accept unless told
+     * otherwise
+     */
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private ValueLists() {
+    }
+
+    static boolean isSeparator(char c) {
+        return c == ',' || c == ';' || c == ':';
+    }
+
+    /**
+     * Returns the number of values in the given list, after checking there
+     * are no more than allowed
+     *
+     * @throws IllegalArgumentException if there are more than maxValues
+     * values
+     */
+    static int count(String list, int maxValues, String paramName) throws IllegalArgumentException {
+
+        int end = list.length();
+        while (end > 0 && isSeparator(list.charAt(end - 1))) {
+            end--;
+        }
+
+        if (end == 0) {
+            return list.isEmpty() ? 1 : 0;
+        }
+
+        int count = 1;
+        for (int i = 0; i < end; i++) {
+            if (isSeparator(list.charAt(i))) {
+                count++;
+                if (count > maxValues) {
+                    break;
+                }
+            }
+        }
+
+        if (count > maxValues) {
+            throw new IllegalArgumentException("No more than " + maxValues + " values can be given for " + paramName + " parameter");
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the index at which the value starting at the given index ends;
+     * either the index of the next separator, or the length of the list
+     */
+    static int valueEnd(String list, int start) {
+        int end = start;
+        while (end < list.length() && !isSeparator(list.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    static String getString(String list, int start, int end) {
+
+        while (start < end && list.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && list.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        return list.substring(start, end);
+    }
+
+    static int getInt(String list, int start, int end, String paramName) throws IllegalArgumentException {
+
+        long value = getLong(list, start, end, paramName);
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw invalidValue(paramName);
+        }
+
+        return (int) value;
+    }
+
+    static long getLong(String list, int start, int end, String paramName) throws IllegalArgumentException {
+
+        while (start < end && list.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && list.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        if (start == end) {
+            throw invalidValue(paramName);
+        }
+
+        boolean negative = false;
+        char first = list.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+            if (start == end) {
+                throw invalidValue(paramName);
+            }
+        }
+
+        //accumulated negatively, so the most negative value can be represented
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplicationLimit = limit / 10;
+        long result = 0;
+
+        for (int i = start; i < end; i++) {
+
+            int digit = list.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < multiplicationLimit) {
+                throw invalidValue(paramName);
+            }
+
+            result *= 10;
+            if (result < limit + digit) {
+                throw invalidValue(paramName);
+            }
+            result -= digit;
+        }
+
+        return negative ? result : -result;
+    }
+
+    static double getDouble(String list, int start, int end, String paramName) throws IllegalArgumentException {
+        try {
+            return Double.parseDouble(list.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw invalidValue(paramName);
+        }
+    }
+
+    private static IllegalArgumentException invalidValue(String paramName) {
+        return new IllegalArgumentException("Invalid value for " + paramName + " parameter");
+    }
+}
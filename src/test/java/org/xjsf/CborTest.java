@@ -0,0 +1,168 @@
+package org.xjsf;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import junit.framework.TestCase;
+
+public class CborTest extends TestCase {
+
+    public void testIntegers() throws IOException {
+
+        long[] values = {0, 1, 23, 24, 255, 256, 65535, 65536, 0xffffffffL, 0x100000000L, Long.MAX_VALUE,
+            -1, -24, -25, -256, -257, -65536, -65537, Long.MIN_VALUE};
+
+        for (long value : values) {
+            JsonElement decoded = roundTrip(new JsonPrimitive(value));
+            assertEquals(value, decoded.getAsLong());
+        }
+    }
+
+    public void testIntegersUseFewestBytes() throws IOException {
+        assertEquals(1, encode(new JsonPrimitive(23)).length);
+        assertEquals(2, encode(new JsonPrimitive(24)).length);
+        assertEquals(3, encode(new JsonPrimitive(-257)).length);
+        assertEquals(5, encode(new JsonPrimitive(65536)).length);
+        assertEquals(9, encode(new JsonPrimitive(Long.MIN_VALUE)).length);
+    }
+
+    public void testUnsignedBeyondLong() throws IOException {
+
+        byte[] encoded = {0x1b, -1, -1, -1, -1, -1, -1, -1, -1};
+        JsonElement decoded = decode(encoded);
+
+        assertEquals(new BigInteger("18446744073709551615"), decoded.getAsBigInteger());
+    }
+
+    public void testDoubles() throws IOException {
+
+        double[] values = {0.5, -1.25, Math.PI, 1e300, -Double.MIN_VALUE};
+
+        for (double value : values) {
+            JsonElement decoded = roundTrip(new JsonPrimitive(value));
+            assertEquals(value, decoded.getAsDouble(), 0);
+        }
+    }
+
+    public void testHalfAndSinglePrecision() throws IOException {
+        assertEquals(1.0, decode(new byte[]{(byte) 0xf9, 0x3c, 0x00}).getAsDouble(), 0);
+        assertEquals(-2.0, decode(new byte[]{(byte) 0xf9, (byte) 0xc0, 0x00}).getAsDouble(), 0);
+        assertEquals(100000.0, decode(new byte[]{(byte) 0xfa, 0x47, (byte) 0xc3, 0x50, 0x00}).getAsDouble(), 0);
+    }
+
+    public void testBooleansAndNull() throws IOException {
+        assertEquals(new JsonPrimitive(true), roundTrip(new JsonPrimitive(true)));
+        assertEquals(new JsonPrimitive(false), roundTrip(new JsonPrimitive(false)));
+        assertTrue(roundTrip(JsonNull.INSTANCE).isJsonNull());
+    }
+
+    public void testStrings() throws IOException {
+
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            longString.append((char) ('a' + i % 26));
+        }
+
+        String[] values = {"", "a", "caf\u00e9 \u20ac \ud83d\ude00", longString.toString()};
+
+        for (String value : values) {
+            assertEquals(value, roundTrip(new JsonPrimitive(value)).getAsString());
+        }
+    }
+
+    public void testNestedObjectsAndArrays() throws IOException {
+
+        JsonArray items = new JsonArray();
+        items.add(new JsonPrimitive(1));
+        items.add(new JsonPrimitive("two"));
+        items.add(JsonNull.INSTANCE);
+        items.add(new JsonArray());
+
+        JsonObject inner = new JsonObject();
+        inner.addProperty("ratio", 0.25);
+        inner.addProperty("enabled", false);
+        items.add(inner);
+
+        JsonObject object = new JsonObject();
+        object.addProperty("service", "/svc");
+        object.addProperty("count", -7);
+        object.add("items", items);
+        object.add("empty", new JsonObject());
+
+        assertEquals(object, roundTrip(object));
+    }
+
+    public void testIndefiniteLengths() throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Cbor.writeMapStart(out);
+        Cbor.writeString("items", out);
+        Cbor.writeArrayStart(out);
+        Cbor.write(new JsonPrimitive(1), out);
+        Cbor.write(new JsonPrimitive("x"), out);
+        Cbor.writeBreak(out);
+        Cbor.writeString("error", out);
+        Cbor.writeString("failed", out);
+        Cbor.writeBreak(out);
+
+        JsonArray items = new JsonArray();
+        items.add(new JsonPrimitive(1));
+        items.add(new JsonPrimitive("x"));
+
+        JsonObject expected = new JsonObject();
+        expected.add("items", items);
+        expected.addProperty("error", "failed");
+
+        assertEquals(expected, decode(out.toByteArray()));
+    }
+
+    public void testTruncatedDataIsRejected() throws IOException {
+
+        byte[] encoded = encode(new JsonPrimitive("truncated"));
+        byte[] truncated = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+
+        try {
+            decode(truncated);
+            fail("Truncated data was decoded");
+        } catch (EOFException e) {
+            //expected
+        }
+    }
+
+    public void testNonTextMapKeysAreRejected() {
+
+        //maps of one entry, keyed by the integer 1 and by an empty array
+        byte[][] maps = {{(byte) 0xa1, 0x01, 0x01}, {(byte) 0xbf, (byte) 0x80, 0x01, (byte) 0xff}};
+
+        for (byte[] map : maps) {
+            try {
+                decode(map);
+                fail("Map with a non-text key was decoded");
+            } catch (IOException e) {
+                //expected
+            }
+        }
+    }
+
+    private static JsonElement roundTrip(JsonElement element) throws IOException {
+        return decode(encode(element));
+    }
+
+    private static byte[] encode(JsonElement element) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Cbor.write(element, out);
+        return out.toByteArray();
+    }
+
+    private static JsonElement decode(byte[] encoded) throws IOException {
+        return Cbor.read(new ByteArrayInputStream(encoded));
+    }
+}
@@ -0,0 +1,174 @@
+package org.xjsf;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class CidrMapTest extends TestCase {
+
+    public void testIpv4LongestPrefix() {
+
+        CidrMap<String> map = new CidrMap<>();
+        map.put("10.0.0.0/8", "a");
+        map.put("10.1.0.0/16", "b");
+        map.put("10.1.2.128/25", "c");
+        map.put("192.168.1.7", "d");
+
+        assertEquals("a", map.get("10.9.9.9"));
+        assertEquals("b", map.get("10.1.9.9"));
+        assertEquals("b", map.get("10.1.2.127"));
+        assertEquals("c", map.get("10.1.2.128"));
+        assertEquals("c", map.get("10.1.2.255"));
+        assertEquals("b", map.get("10.1.3.0"));
+        assertEquals("a", map.get("10.255.255.255"));
+        assertEquals("d", map.get("192.168.1.7"));
+        assertNull(map.get("192.168.1.8"));
+        assertNull(map.get("11.0.0.0"));
+        assertNull(map.get("9.255.255.255"));
+    }
+
+    public void testIpv6LongestPrefix() {
+
+        CidrMap<String> map = new CidrMap<>();
+        map.put("2001:db8::/32", "a");
+        map.put("2001:db8:1::/48", "b");
+        map.put("2001:db8:1::1", "c");
+
+        assertEquals("a", map.get("2001:db8::1"));
+        assertEquals("b", map.get("2001:db8:1::2"));
+        assertEquals("c", map.get("2001:db8:1::1"));
+        assertEquals("c", map.get("[2001:db8:1::1]"));
+        assertEquals("a", map.get("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertNull(map.get("2001:db9::"));
+        assertNull(map.get("::1"));
+    }
+
+    public void testDefaultRanges() {
+
+        CidrMap<String> map = new CidrMap<>();
+        map.put("0.0.0.0/0", "v4");
+        map.put("::/0", "v6");
+        map.put("10.0.0.0/8", "a");
+
+        assertEquals("v4", map.get("0.0.0.0"));
+        assertEquals("v4", map.get("255.255.255.255"));
+        assertEquals("a", map.get("10.1.1.1"));
+        assertEquals("v4", map.get("11.0.0.0"));
+        assertEquals("v6", map.get("::1"));
+        assertEquals("v6", map.get("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testOverlappingRangesInAnyOrder() {
+
+        CidrMap<String> longFirst = new CidrMap<>();
+        longFirst.put("10.1.2.3", "long");
+        longFirst.put("10.0.0.0/8", "short");
+
+        CidrMap<String> shortFirst = new CidrMap<>();
+        shortFirst.put("10.0.0.0/8", "short");
+        shortFirst.put("10.1.2.3", "long");
+
+        for (CidrMap<String> map : new CidrMap[]{longFirst, shortFirst}) {
+            assertEquals("long", map.get("10.1.2.3"));
+            assertEquals("short", map.get("10.1.2.2"));
+            assertEquals("short", map.get("10.1.2.4"));
+        }
+    }
+
+    public void testRepeatedRangeTakesLastValue() {
+
+        CidrMap<String> map = new CidrMap<>();
+        map.put("10.0.0.0/8", "first");
+        map.put("10.0.0.0/8", "second");
+
+        assertEquals("second", map.get("10.0.0.1"));
+    }
+
+    public void testRangesAddedAfterLookup() {
+
+        CidrMap<String> map = new CidrMap<>();
+        map.put("10.0.0.0/8", "a");
+        assertEquals("a", map.get("10.1.1.1"));
+
+        map.put("10.1.0.0/16", "b");
+        assertEquals("b", map.get("10.1.1.1"));
+    }
+
+    public void testMappedIpv4Addresses() {
+
+        CidrMap<String> map = new CidrMap<>();
+        map.put("10.0.0.0/8", "a");
+
+        assertEquals("a", map.get("::ffff:10.1.2.3"));
+    }
+
+    public void testInvalidRanges() {
+
+        CidrMap<String> map = new CidrMap<>();
+
+        for (String range : new String[]{"10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/x", "256.0.0.0/8", "host.example/8", "::/129"}) {
+            assertFalse(range, CidrMap.isValidRange(range));
+            try {
+                map.put(range, "x");
+                fail("Accepted " + range);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+
+        assertTrue(map.isEmpty());
+        assertTrue(CidrMap.isValidRange("10.0.0.0/8"));
+        assertTrue(CidrMap.isValidRange("2001:db8::/128"));
+        assertTrue(CidrMap.isValidRange("10.1.2.3"));
+    }
+
+    public void testParseAddress() {
+        assertEquals(4, CidrMap.parseAddress("1.2.3.4").length);
+        assertEquals(16, CidrMap.parseAddress("2001:db8::1").length);
+        assertNull(CidrMap.parseAddress("1.2.3"));
+        assertNull(CidrMap.parseAddress("1.2.3.4.5"));
+        assertNull(CidrMap.parseAddress("localhost"));
+        assertNull(CidrMap.parseAddress(""));
+    }
+
+    public void testMatchesBruteForce() {
+
+        Random random = new Random(42);
+
+        for (int round = 0; round < 200; round++) {
+
+            int count = 1 + random.nextInt(30);
+            int[] addresses = new int[count];
+            int[] lengths = new int[count];
+
+            CidrMap<Integer> map = new CidrMap<>();
+            for (int i = 0; i < count; i++) {
+                //clustered in 10.0.0.x, so that ranges nest and overlap
+                addresses[i] = random.nextBoolean() ? random.nextInt() : 0x0a000000 | random.nextInt(256);
+                lengths[i] = random.nextInt(4) == 0 ? random.nextInt(33) : 24 + random.nextInt(9);
+                map.put(toString(addresses[i]) + "/" + lengths[i], i);
+            }
+
+            for (int t = 0; t < 500; t++) {
+
+                int address = random.nextBoolean() ? random.nextInt() : 0x0a000000 | random.nextInt(256);
+
+                Integer expected = null;
+                int expectedLength = -1;
+                for (int i = 0; i < count; i++) {
+                    int mask = lengths[i] == 0 ? 0 : -1 << (32 - lengths[i]);
+                    if ((address & mask) == (addresses[i] & mask) && lengths[i] >= expectedLength) {
+                        expected = i;
+                        expectedLength = lengths[i];
+                    }
+                }
+
+                assertEquals(toString(address), expected, map.get(toString(address)));
+            }
+        }
+    }
+
+    private static String toString(int address) {
+        return (address >>> 24) + "." + ((address >> 16) & 0xff) + "." + ((address >> 8) & 0xff) + "." + (address & 0xff);
+    }
+}
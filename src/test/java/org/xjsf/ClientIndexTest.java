@@ -0,0 +1,143 @@
+package org.xjsf;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.TestCase;
+
+public class ClientIndexTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("clientIndex").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testBuildWriteOpenLookup() throws Exception {
+
+        byte[] keyHash = sha256("secret");
+        byte[] sourceHash = sha256("source");
+
+        ClientIndex.Builder builder = new ClientIndex.Builder();
+        builder.setDefaultClient("anonymousPassword", 10, 100, 1000, Client.Algorithm.fixedWindow, 0, 0);
+        builder.setCookies("user", "pass");
+        builder.setKeyParam("apiKey");
+        builder.addClient("wide", null, 1, 2, 3, Client.Algorithm.slidingWindow, 0, 0,
+                Arrays.asList("10.0.0.0/8", "2001:db8::/32"), null);
+        builder.addClient("narrow", "pw", 4, 5, 6, Client.Algorithm.tokenBucket, 7, 0.5,
+                Arrays.asList("10.1.0.0/16"), keyHash);
+        builder.addClient("plain", null, -1, -1, -1, Client.Algorithm.fixedWindow, 0, 0,
+                Collections.<String>emptyList(), null);
+
+        File indexFile = new File(dir, "clients.xml.idx");
+        ClientIndex.write(builder.build(sourceHash), indexFile);
+
+        ClientIndex index = ClientIndex.open(indexFile, sourceHash);
+        assertNotNull(index);
+
+        assertEquals(3, index.getClientCount());
+        assertEquals(Arrays.asList("wide", "narrow", "plain"), Arrays.asList(index.getClientNames()));
+
+        String[] settings = index.getSettings();
+        assertEquals("anonymousPassword", settings[0]);
+        assertEquals("user", settings[1]);
+        assertEquals("pass", settings[2]);
+        assertEquals("X-API-Key", settings[3]);
+        assertEquals("apiKey", settings[4]);
+
+        Client defaultClient = index.createDefaultClient();
+        assertEquals(10, defaultClient.getMinuteUsage().getLimit());
+        assertEquals(1000, defaultClient.getDayUsage().getLimit());
+
+        Client narrow = index.createClient("narrow");
+        assertEquals("narrow", narrow.getName());
+        assertTrue(narrow.passwordMatches("pw"));
+        assertEquals(4, narrow.getMinuteUsage().getLimit());
+        assertEquals(5, narrow.getHourUsage().getLimit());
+        assertEquals(6, narrow.getDayUsage().getLimit());
+        assertNull(index.createClient("missing"));
+
+        assertTrue(index.hasKeys());
+        assertEquals("narrow", index.getClientNameForKeyHash(keyHash));
+        assertNull(index.getClientNameForKeyHash(sha256("wrong")));
+
+        assertTrue(index.hasAddresses());
+        assertEquals("wide", index.getClientNameForAddress(CidrMap.parseAddress("10.9.9.9")));
+        assertEquals("narrow", index.getClientNameForAddress(CidrMap.parseAddress("10.1.2.3")));
+        assertEquals("wide", index.getClientNameForAddress(CidrMap.parseAddress("2001:db8::1")));
+        assertNull(index.getClientNameForAddress(CidrMap.parseAddress("11.0.0.1")));
+        assertNull(index.getClientNameForAddress(CidrMap.parseAddress("::1")));
+    }
+
+    public void testIndexOfOtherContentIsNotOpened() throws Exception {
+
+        ClientIndex.Builder builder = new ClientIndex.Builder();
+        builder.addClient("a", null, 1, -1, -1, Client.Algorithm.fixedWindow, 0, 0, null, null);
+
+        File indexFile = new File(dir, "clients.xml.idx");
+        ClientIndex.write(builder.build(sha256("before")), indexFile);
+
+        assertNull(ClientIndex.open(indexFile, sha256("after")));
+        assertNull(ClientIndex.open(new File(dir, "missing.idx"), sha256("before")));
+    }
+
+    public void testClientListReusesIndexUntilContentChanges() throws Exception {
+
+        File listFile = new File(dir, "clients.xml");
+        File indexFile = new File(dir, "clients.xml.idx");
+
+        writeList(listFile, "<clients><client name='a' minLimit='5' addresses='10.0.0.0/8'/></clients>");
+        ClientList list = new ClientList(listFile, true);
+        assertEquals(5, list.getClient("a").getMinuteUsage().getLimit());
+        assertEquals("a", list.getClientForAddress("10.1.1.1").getName());
+        assertTrue(indexFile.isFile());
+
+        long indexModified = indexFile.lastModified();
+        list = new ClientList(listFile, true);
+        assertEquals(5, list.getClient("a").getMinuteUsage().getLimit());
+        assertEquals(indexModified, indexFile.lastModified());
+
+        //an edit that keeps the same length and modification time must not reuse the stale index
+        long listModified = listFile.lastModified();
+        writeList(listFile, "<clients><client name='a' minLimit='7' addresses='11.0.0.0/8'/></clients>");
+        listFile.setLastModified(listModified);
+
+        list = new ClientList(listFile, true);
+        assertEquals(7, list.getClient("a").getMinuteUsage().getLimit());
+        assertNull(list.getClientForAddress("10.1.1.1"));
+        assertEquals("a", list.getClientForAddress("11.1.1.1").getName());
+    }
+
+    public void testInvalidRangesAreSkipped() throws Exception {
+
+        File listFile = new File(dir, "clients.xml");
+        writeList(listFile, "<clients><client name='a' minLimit='5' addresses='10.0.0.0/33, 10.0.0.0/8'/>"
+                + "<client name='b' minLimit='6' addresses='11.0.0.0/8'/></clients>");
+
+        for (boolean indexed : new boolean[]{false, true}) {
+            ClientList list = new ClientList(listFile, indexed);
+            assertEquals("a", list.getClientForAddress("10.1.1.1").getName());
+            assertEquals("b", list.getClientForAddress("11.1.1.1").getName());
+        }
+    }
+
+    private static void writeList(File file, String xml) throws Exception {
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] sha256(String s) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+    }
+}